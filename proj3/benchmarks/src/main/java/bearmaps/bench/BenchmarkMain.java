@@ -0,0 +1,38 @@
+package bearmaps.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.ProfilerConfig;
+
+/**
+ * Entry point of benchmarks.jar: JMH's own command line, plus the gc profiler unless it was
+ * asked for already, so every result includes the allocation rate per operation. The modes,
+ * warmup and measurement settings come from MapBenchmark unless overridden on the command
+ * line (-bm, -wi, -i, -f, ...).
+ */
+public final class BenchmarkMain {
+    private BenchmarkMain() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cli = new CommandLineOptions(args);
+        if (cli.shouldHelp() || cli.shouldList() || cli.shouldListProfilers()
+                || cli.shouldListResultFormats() || cli.shouldListWithParams()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(cli);
+        boolean hasGc = false;
+        for (ProfilerConfig profiler : cli.getProfilers()) {
+            hasGc |= profiler.getKlass().equals("gc")
+                    || profiler.getKlass().equals(GCProfiler.class.getName());
+        }
+        if (!hasGc) {
+            options.addProfiler(GCProfiler.class);
+        }
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,39 @@
+package bearmaps.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * GraphDB.closest, the nearest-vertex lookup every route request starts with, over the start
+ * and end points of a trace of route queries.
+ */
+@State(Scope.Thread)
+public class ClosestBenchmark extends MapBenchmark {
+    @Param("traces/route.txt")
+    public String trace;
+
+    private Object graph;
+    private double[][] points;
+    private int next;
+
+    @Setup
+    public void setUp(MapState map) throws Exception {
+        graph = map.graph;
+        double[][] queries = Trace.numbers(trace, 4);
+        points = new double[queries.length * 2][];
+        for (int i = 0; i < queries.length; i += 1) {
+            points[2 * i] = new double[] {queries[i][0], queries[i][1]};
+            points[2 * i + 1] = new double[] {queries[i][2], queries[i][3]};
+        }
+    }
+
+    @Benchmark
+    public long closest() throws Throwable {
+        double[] p = points[next];
+        next = next + 1 == points.length ? 0 : next + 1;
+        return (long) Proj3.CLOSEST.invokeExact(graph, p[0], p[1]);
+    }
+}
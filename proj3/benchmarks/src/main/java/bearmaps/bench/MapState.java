@@ -0,0 +1,23 @@
+package bearmaps.bench;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The map as the server sees it: MapServer.initialize() run once per forked JVM, in the
+ * working directory, which must hold berkeley.osm and the img/ tiles. The graph snapshot next
+ * to berkeley.osm makes every fork after the first start quickly.
+ */
+@State(Scope.Benchmark)
+public class MapState {
+    Object graph;
+    Object rasterer;
+
+    @Setup
+    public void setUp() throws Throwable {
+        Proj3.initialize();
+        graph = Proj3.graph();
+        rasterer = Proj3.rasterer();
+    }
+}
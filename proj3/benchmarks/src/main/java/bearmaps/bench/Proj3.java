@@ -0,0 +1,119 @@
+package bearmaps.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * Handles on the proj3 code under test. The proj3 classes live in the default package, which
+ * cannot be imported from here, and JMH will not generate benchmarks in the default package,
+ * so every entry point is looked up once by reflection and kept as a MethodHandle. Each handle
+ * has its proj3 types erased to Object, so a benchmark calls it with invokeExact; since the
+ * handles are static finals, the JIT inlines through them like through a direct call.
+ */
+final class Proj3 {
+    static final Class<?> GRAPH_DB = load("GraphDB");
+    static final Class<?> METRIC = load("GraphDB$Metric");
+    private static final Class<?> ROUTER = load("Router");
+    private static final Class<?> RASTERER = load("Rasterer");
+    private static final Class<?> MAP_SERVER = load("MapServer");
+    private static final Class<?> HIERARCHY = load("ContractionHierarchy");
+
+    /** (Object graph, double stlon, stlat, destlon, destlat, Object metric)LinkedList */
+    static final MethodHandle SHORTEST_PATH = method(ROUTER, "shortestPath", GRAPH_DB,
+            double.class, double.class, double.class, double.class, METRIC);
+    /** (Object graph, double lon, double lat)long */
+    static final MethodHandle CLOSEST = method(GRAPH_DB, "closest", double.class, double.class);
+    /** (Object rasterer, Map params)Map */
+    static final MethodHandle GET_MAP_RASTER = method(RASTERER, "getMapRaster",
+            java.util.Map.class);
+    /** (String prefix)List */
+    static final MethodHandle LOCATIONS_BY_PREFIX = method(MAP_SERVER, "getLocationsByPrefix",
+            String.class);
+    /** (String prefix, int limit)List */
+    static final MethodHandle TOP_LOCATIONS_BY_PREFIX = method(MAP_SERVER,
+            "getLocationsByPrefix", String.class, int.class);
+    /** (String name)List */
+    static final MethodHandle LOCATIONS = method(MAP_SERVER, "getLocations", String.class);
+
+    private static final MethodHandle INITIALIZE = method(MAP_SERVER, "initialize");
+    private static final MethodHandle OPEN_HIERARCHY = method(HIERARCHY, "open", GRAPH_DB,
+            String.class, METRIC);
+    private static final MethodHandle USE_HIERARCHY = method(GRAPH_DB, "useHierarchy", METRIC,
+            HIERARCHY);
+
+    /** The OSM file MapServer loads, relative to the working directory. */
+    static final String OSM_DB_PATH = "berkeley.osm";
+
+    private Proj3() {
+    }
+
+    private static Class<?> load(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("proj3 class " + name + " is not on the class path",
+                    e);
+        }
+    }
+
+    /** Returns a handle on the named method, with every proj3 type erased to Object. */
+    private static MethodHandle method(Class<?> owner, String name, Class<?>... parameters) {
+        try {
+            Method m = owner.getDeclaredMethod(name, parameters);
+            m.setAccessible(true);
+            MethodHandle handle = MethodHandles.lookup().unreflect(m);
+            MethodType type = handle.type();
+            for (int i = 0; i < type.parameterCount(); i += 1) {
+                type = type.changeParameterType(i, erase(type.parameterType(i)));
+            }
+            return handle.asType(type.changeReturnType(erase(type.returnType())));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("proj3 has no method " + owner.getName() + "."
+                    + name, e);
+        }
+    }
+
+    private static Class<?> erase(Class<?> type) {
+        return type.isPrimitive() || type.getName().startsWith("java.") ? type : Object.class;
+    }
+
+    /** Starts MapServer the way the server does, loading berkeley.osm and the tile root. */
+    static void initialize() throws Throwable {
+        INITIALIZE.invokeExact();
+    }
+
+    /** The graph MapServer loaded. */
+    static Object graph() throws ReflectiveOperationException {
+        return staticField(MAP_SERVER, "graph");
+    }
+
+    /** The rasterer MapServer created. */
+    static Object rasterer() throws ReflectiveOperationException {
+        return staticField(MAP_SERVER, "rasterer");
+    }
+
+    /** The GraphDB.Metric constant with the given name. */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static Object metric(String name) {
+        return Enum.valueOf((Class) METRIC, name);
+    }
+
+    /**
+     * Routes queries on graph under metric with its contraction hierarchy, loading it from
+     * next to berkeley.osm or building it there first.
+     */
+    static void useHierarchy(Object graph, Object metric) throws Throwable {
+        Object ch = (Object) OPEN_HIERARCHY.invokeExact(graph, OSM_DB_PATH, metric);
+        USE_HIERARCHY.invokeExact(graph, metric, ch);
+    }
+
+    private static Object staticField(Class<?> owner, String name)
+            throws ReflectiveOperationException {
+        Field f = owner.getDeclaredField(name);
+        f.setAccessible(true);
+        return f.get(null);
+    }
+}
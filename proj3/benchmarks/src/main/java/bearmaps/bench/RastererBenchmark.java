@@ -0,0 +1,47 @@
+package bearmaps.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Rasterer.getMapRaster, which picks the tiles of a raster request, over a trace of raster
+ * queries. Compositing and encoding the image are not part of the operation.
+ */
+@State(Scope.Thread)
+public class RastererBenchmark extends MapBenchmark {
+    private static final String[] PARAMS = {"ullon", "ullat", "lrlon", "lrlat", "w", "h"};
+
+    @Param("traces/raster.txt")
+    public String trace;
+
+    private Object rasterer;
+    private Map<?, ?>[] queries;
+    private int next;
+
+    @Setup
+    public void setUp(MapState map) throws Exception {
+        rasterer = map.rasterer;
+        double[][] values = Trace.numbers(trace, PARAMS.length);
+        queries = new Map<?, ?>[values.length];
+        for (int i = 0; i < values.length; i += 1) {
+            Map<String, Double> params = new HashMap<>();
+            for (int j = 0; j < PARAMS.length; j += 1) {
+                params.put(PARAMS[j], values[i][j]);
+            }
+            queries[i] = params;
+        }
+    }
+
+    @Benchmark
+    public Map<?, ?> getMapRaster() throws Throwable {
+        Map<?, ?> params = queries[next];
+        next = next + 1 == queries.length ? 0 : next + 1;
+        return (Map<?, ?>) Proj3.GET_MAP_RASTER.invokeExact(rasterer, params);
+    }
+}
@@ -0,0 +1,47 @@
+package bearmaps.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.LinkedList;
+
+/**
+ * Router.shortestPath over a trace of route queries, by length or by travel time, with
+ * bidirectional A* or with a contraction hierarchy. Each call takes the next query of the
+ * trace, so one operation is one route request.
+ */
+@State(Scope.Thread)
+public class RouterBenchmark extends MapBenchmark {
+    @Param({"DISTANCE", "TIME"})
+    public String metric;
+    @Param({"false", "true"})
+    public boolean hierarchy;
+    @Param("traces/route.txt")
+    public String trace;
+
+    private Object graph;
+    private Object metricValue;
+    private double[][] queries;
+    private int next;
+
+    @Setup
+    public void setUp(MapState map) throws Throwable {
+        graph = map.graph;
+        metricValue = Proj3.metric(metric);
+        queries = Trace.numbers(trace, 4);
+        if (hierarchy) {
+            Proj3.useHierarchy(graph, metricValue);
+        }
+    }
+
+    @Benchmark
+    public LinkedList<?> shortestPath() throws Throwable {
+        double[] q = queries[next];
+        next = next + 1 == queries.length ? 0 : next + 1;
+        return (LinkedList<?>) Proj3.SHORTEST_PATH.invokeExact(graph, q[0], q[1], q[2], q[3],
+                metricValue);
+    }
+}
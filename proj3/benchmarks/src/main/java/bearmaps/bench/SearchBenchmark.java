@@ -0,0 +1,57 @@
+package bearmaps.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+/**
+ * The /search queries: every location name with a prefix, the top ten of them, and the
+ * locations with a full name, over a trace of prefix and name pairs.
+ */
+@State(Scope.Thread)
+public class SearchBenchmark extends MapBenchmark {
+    private static final int LIMIT = 10;
+
+    @Param("traces/search.txt")
+    public String trace;
+
+    private String[] prefixes;
+    private String[] names;
+    private int next;
+
+    @Setup
+    public void setUp(MapState map) throws Exception {
+        List<String[]> queries = Trace.fields(trace);
+        prefixes = new String[queries.size()];
+        names = new String[queries.size()];
+        for (int i = 0; i < prefixes.length; i += 1) {
+            prefixes[i] = queries.get(i)[0];
+            names[i] = queries.get(i).length > 1 ? queries.get(i)[1] : queries.get(i)[0];
+        }
+    }
+
+    private int advance() {
+        int i = next;
+        next = next + 1 == prefixes.length ? 0 : next + 1;
+        return i;
+    }
+
+    @Benchmark
+    public List<?> prefix() throws Throwable {
+        return (List<?>) Proj3.LOCATIONS_BY_PREFIX.invokeExact(prefixes[advance()]);
+    }
+
+    @Benchmark
+    public List<?> topPrefix() throws Throwable {
+        return (List<?>) Proj3.TOP_LOCATIONS_BY_PREFIX.invokeExact(prefixes[advance()], LIMIT);
+    }
+
+    @Benchmark
+    public List<?> locations() throws Throwable {
+        return (List<?>) Proj3.LOCATIONS.invokeExact(names[advance()]);
+    }
+}
@@ -0,0 +1,68 @@
+package bearmaps.bench;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A recorded query trace: a text file with one query per line, fields separated by tabs (or,
+ * for numeric traces, any whitespace), and '#' starting a comment line. A trace is looked up
+ * as a file first and then as a resource, so the traces bundled under traces/ can be replaced
+ * with a recording of real traffic by passing its path, e.g. -p trace=/tmp/routes.txt.
+ */
+final class Trace {
+    private Trace() {
+    }
+
+    /** The lines of the trace, split at tabs. */
+    static List<String[]> fields(String name) throws IOException {
+        List<String[]> lines = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(open(name),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.trim().isEmpty() && !line.startsWith("#")) {
+                    lines.add(line.split("\t"));
+                }
+            }
+        }
+        if (lines.isEmpty()) {
+            throw new IOException("Trace " + name + " has no queries");
+        }
+        return lines;
+    }
+
+    /** The lines of the trace as numbers, each line holding exactly width of them. */
+    static double[][] numbers(String name, int width) throws IOException {
+        List<String[]> lines = fields(name);
+        double[][] queries = new double[lines.size()][];
+        for (int i = 0; i < queries.length; i += 1) {
+            String[] tokens = String.join(" ", lines.get(i)).trim().split("\\s+");
+            if (tokens.length != width) {
+                throw new IOException("Trace " + name + " line " + (i + 1) + " has "
+                        + tokens.length + " fields instead of " + width);
+            }
+            queries[i] = new double[width];
+            for (int j = 0; j < width; j += 1) {
+                queries[i][j] = Double.parseDouble(tokens[j]);
+            }
+        }
+        return queries;
+    }
+
+    private static InputStream open(String name) throws IOException {
+        if (new java.io.File(name).isFile()) {
+            return new FileInputStream(name);
+        }
+        InputStream in = Trace.class.getClassLoader().getResourceAsStream(name);
+        if (in == null) {
+            throw new IOException("No trace file or resource " + name);
+        }
+        return in;
+    }
+}
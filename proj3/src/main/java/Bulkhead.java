@@ -0,0 +1,90 @@
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admission control for one class of requests: at most maxConcurrent of them run at a time, at
+ * most maxQueued more wait for a turn, and none waits longer than maxWaitMillis. Anything
+ * beyond that is turned away at once, so a burst of one class holds on to a bounded number of
+ * server threads and the other classes keep theirs.
+ */
+class Bulkhead {
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final long maxWaitMillis;
+    private final Semaphore permits;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    Bulkhead(int maxConcurrent, int maxQueued, long maxWaitMillis) {
+        if (maxConcurrent < 1 || maxQueued < 0 || maxWaitMillis < 0) {
+            throw new IllegalArgumentException("Bad limits " + maxConcurrent + ", "
+                    + maxQueued + ", " + maxWaitMillis);
+        }
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueued = maxQueued;
+        this.maxWaitMillis = maxWaitMillis;
+        this.permits = new Semaphore(maxConcurrent);
+    }
+
+    /**
+     * Waits for a turn to run. Returns true if one was granted, in which case the caller must
+     * call exit when done, or false if the queue was full or the wait timed out.
+     */
+    boolean enter() {
+        if (permits.tryAcquire()) {
+            admitted.increment();
+            return true;
+        }
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            rejected.increment();
+            return false;
+        }
+        try {
+            if (permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                admitted.increment();
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            queued.decrementAndGet();
+        }
+        rejected.increment();
+        return false;
+    }
+
+    /** Gives back a turn granted by enter. */
+    void exit() {
+        permits.release();
+    }
+
+    int maxConcurrent() {
+        return maxConcurrent;
+    }
+
+    int maxQueued() {
+        return maxQueued;
+    }
+
+    /** Number of requests running now. */
+    int active() {
+        return maxConcurrent - permits.availablePermits();
+    }
+
+    /** Number of requests waiting for a turn now. */
+    int queued() {
+        return queued.get();
+    }
+
+    long admitted() {
+        return admitted.sum();
+    }
+
+    long rejected() {
+        return rejected.sum();
+    }
+}
@@ -0,0 +1,473 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * A contraction hierarchy over a GraphDB, for answering shortest-path queries while settling
+ * only a few hundred vertices. Preprocessing contracts the vertices one at a time in order of
+ * importance, adding a shortcut edge u-x through v whenever contracting v would otherwise
+ * destroy the only shortest path from u to x. A query then runs Dijkstra from both endpoints
+ * over upward edges only (see RouteSearch.hierarchy) and unpacks the shortcuts on the result.
+ *
+ * The hierarchy is stored as an upward CSR graph: the edges of v lead to neighbors of higher
+ * rank, each with its weight and the vertex it bypasses (-1 for an original road segment).
+ * It can be written next to the OSM file so that the server does not rebuild it on boot.
+ *
+ * A hierarchy is built for one metric: contracting with travel times instead of lengths
+ * gives a hierarchy whose queries find the fastest route, at the same query cost.
+ */
+class ContractionHierarchy {
+    private static final int MAGIC = 0x424d4348;
+    private static final int VERSION = 2;
+    /** Witness searches give up (and keep the shortcut) after settling this many vertices. */
+    private static final int WITNESS_SETTLE_LIMIT = 500;
+    /** Tighter limit used when only estimating a vertex's priority. */
+    private static final int SIMULATED_WITNESS_SETTLE_LIMIT = 50;
+
+    private final GraphDB.Metric metric;
+    private final int[] rank;
+    private final int[] upOffsets;
+    private final int[] upTargets;
+    private final double[] upWeights;
+    private final int[] upMiddles;
+
+    private ContractionHierarchy(GraphDB.Metric metric, int[] rank, int[] upOffsets,
+                                 int[] upTargets, double[] upWeights, int[] upMiddles) {
+        this.metric = metric;
+        this.rank = rank;
+        this.upOffsets = upOffsets;
+        this.upTargets = upTargets;
+        this.upWeights = upWeights;
+        this.upMiddles = upMiddles;
+    }
+
+    /** The metric the edge weights are measured in. */
+    GraphDB.Metric metric() {
+        return metric;
+    }
+
+    /** Number of vertices in the hierarchy. */
+    int size() {
+        return rank.length;
+    }
+
+    /** Number of upward edges, shortcuts included. */
+    int edgeCount() {
+        return upTargets.length;
+    }
+
+    /** First upward edge slot of v. */
+    int upStart(int v) {
+        return upOffsets[v];
+    }
+
+    /** One past the last upward edge slot of v. */
+    int upEnd(int v) {
+        return upOffsets[v + 1];
+    }
+
+    /** Higher-ranked endpoint of upward edge e. */
+    int upTarget(int e) {
+        return upTargets[e];
+    }
+
+    /** Weight of upward edge e. */
+    double upWeight(int e) {
+        return upWeights[e];
+    }
+
+    /**
+     * Appends to path the OSM ids of the original vertices strictly after a, up to and
+     * including b, where a and b are joined by an edge of the hierarchy.
+     */
+    void unpack(GraphDB g, int a, int b, LinkedList<Long> path) {
+        int[] stack = new int[16];
+        stack[0] = b;
+        int top = 1;
+        int from = a;
+        /* Depth-first over the shortcut tree: split (from, stack top) until it is a real edge. */
+        while (top > 0) {
+            int to = stack[top - 1];
+            int middle = middle(from, to);
+            if (middle < 0) {
+                path.addLast(g.id(to));
+                top -= 1;
+                from = to;
+            } else {
+                if (top == stack.length) {
+                    stack = Arrays.copyOf(stack, top * 2);
+                }
+                stack[top] = middle;
+                top += 1;
+            }
+        }
+    }
+
+    /** Vertex bypassed by the hierarchy edge joining v and w. */
+    private int middle(int v, int w) {
+        int lo = rank[v] < rank[w] ? v : w;
+        int hi = lo == v ? w : v;
+        for (int e = upOffsets[lo]; e < upOffsets[lo + 1]; e += 1) {
+            if (upTargets[e] == hi) {
+                return upMiddles[e];
+            }
+        }
+        throw new IllegalStateException("No hierarchy edge between " + v + " and " + w);
+    }
+
+    /**
+     * Returns the hierarchy of g under metric, g being the graph of the OSM file at osmPath.
+     * It is loaded from the file next to the OSM file if that was built for the current
+     * version of the graph, and otherwise built and saved there.
+     */
+    static ContractionHierarchy open(GraphDB g, String osmPath, GraphDB.Metric metric) {
+        File source = new File(osmPath);
+        File file = new File(hierarchyPath(osmPath, metric));
+        if (file.isFile()) {
+            try {
+                ContractionHierarchy ch = read(file, source, g, metric);
+                if (ch != null) {
+                    return ch;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        ContractionHierarchy ch = build(g, metric);
+        try {
+            ch.write(file, source);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return ch;
+    }
+
+    /**
+     * Returns the path of the file that caches the hierarchy under metric of the OSM file at
+     * osmPath.
+     */
+    static String hierarchyPath(String osmPath, GraphDB.Metric metric) {
+        return metric == GraphDB.Metric.DISTANCE ? osmPath + ".ch" : osmPath + ".time.ch";
+    }
+
+    /** Contracts every vertex of g under metric and returns the resulting hierarchy. */
+    static ContractionHierarchy build(GraphDB g, GraphDB.Metric metric) {
+        return new Builder(g, metric).build();
+    }
+
+    /**
+     * Writes the hierarchy to file. The length and modification time of source, the OSM file
+     * the graph was built from, are recorded so that stale files can be detected.
+     */
+    void write(File file, File source) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(source.length());
+            out.writeLong(source.lastModified());
+            out.writeInt(metric.ordinal());
+            out.writeInt(rank.length);
+            out.writeInt(upTargets.length);
+            for (int r : rank) {
+                out.writeInt(r);
+            }
+            for (int offset : upOffsets) {
+                out.writeInt(offset);
+            }
+            for (int e = 0; e < upTargets.length; e += 1) {
+                out.writeInt(upTargets[e]);
+                out.writeDouble(upWeights[e]);
+                out.writeInt(upMiddles[e]);
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not move " + tmp + " to " + file);
+            }
+        }
+    }
+
+    /**
+     * Reads the hierarchy saved in file, or returns null if it was not built from the current
+     * version of source under metric or does not match the size of g.
+     */
+    static ContractionHierarchy read(File file, File source, GraphDB g, GraphDB.Metric metric)
+            throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r");
+             FileChannel channel = in.getChannel()) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION
+                    || buf.getLong() != source.length() || buf.getLong() != source.lastModified()
+                    || buf.getInt() != metric.ordinal() || buf.getInt() != g.size()) {
+                return null;
+            }
+            int n = g.size();
+            int m = buf.getInt();
+            int[] rank = new int[n];
+            int[] upOffsets = new int[n + 1];
+            int[] upTargets = new int[m];
+            double[] upWeights = new double[m];
+            int[] upMiddles = new int[m];
+            buf.asIntBuffer().get(rank);
+            buf.position(buf.position() + n * Integer.BYTES);
+            buf.asIntBuffer().get(upOffsets);
+            buf.position(buf.position() + (n + 1) * Integer.BYTES);
+            for (int e = 0; e < m; e += 1) {
+                upTargets[e] = buf.getInt();
+                upWeights[e] = buf.getDouble();
+                upMiddles[e] = buf.getInt();
+            }
+            return new ContractionHierarchy(metric, rank, upOffsets, upTargets, upWeights,
+                    upMiddles);
+        }
+    }
+
+    /**
+     * Offline preprocessing: builds the hierarchies, one per metric, of the OSM file given as
+     * the only argument and writes them next to that file.
+     */
+    public static void main(String[] args) throws IOException {
+        String osmPath = args.length > 0 ? args[0] : "berkeley.osm";
+        GraphDB g = GraphDB.open(osmPath);
+        for (GraphDB.Metric metric : GraphDB.Metric.values()) {
+            long start = System.currentTimeMillis();
+            ContractionHierarchy ch = build(g, metric);
+            System.out.println("Contracted " + ch.size() + " vertices into " + ch.edgeCount()
+                    + " upward edges by " + metric.name().toLowerCase() + " in "
+                    + (System.currentTimeMillis() - start) + " ms.");
+            ch.write(new File(hierarchyPath(osmPath, metric)), new File(osmPath));
+        }
+    }
+
+    /**
+     * Working state of the contraction: a mutable undirected adjacency structure holding the
+     * original edges and the shortcuts added so far, plus the arrays of a bounded Dijkstra
+     * used for witness searches.
+     */
+    private static class Builder {
+        private final GraphDB.Metric metric;
+        private final int n;
+        private final int[][] neighbors;
+        private final double[][] weights;
+        private final int[][] middles;
+        private final int[] degree;
+        private final boolean[] contracted;
+        private final int[] contractedNeighbors;
+        private final int[] rank;
+
+        private final VertexHeap witnessQueue;
+        private final double[] witnessDist;
+        private final int[] witnessStamp;
+        private int witnessEpoch;
+
+        /** Uncontracted neighbors of the vertex being contracted, and their edge weights. */
+        private int[] around = new int[16];
+        private double[] aroundWeight = new double[16];
+
+        Builder(GraphDB g, GraphDB.Metric metric) {
+            this.metric = metric;
+            n = g.size();
+            neighbors = new int[n][];
+            weights = new double[n][];
+            middles = new int[n][];
+            degree = new int[n];
+            for (int v = 0; v < n; v += 1) {
+                int d = g.edgeEnd(v) - g.edgeStart(v);
+                neighbors[v] = new int[Math.max(d, 1)];
+                weights[v] = new double[Math.max(d, 1)];
+                middles[v] = new int[Math.max(d, 1)];
+                for (int e = g.edgeStart(v); e < g.edgeEnd(v); e += 1) {
+                    int w = g.edgeTarget(e);
+                    neighbors[v][degree[v]] = w;
+                    weights[v][degree[v]] = g.weight(metric, v, e);
+                    middles[v][degree[v]] = -1;
+                    degree[v] += 1;
+                }
+            }
+            contracted = new boolean[n];
+            contractedNeighbors = new int[n];
+            rank = new int[n];
+            witnessQueue = new VertexHeap(n);
+            witnessDist = new double[n];
+            witnessStamp = new int[n];
+        }
+
+        ContractionHierarchy build() {
+            /* Order by edge difference, updated lazily: a popped vertex whose priority has
+             * grown past the next candidate's is put back instead of being contracted. */
+            VertexHeap order = new VertexHeap(n);
+            order.clear();
+            for (int v = 0; v < n; v += 1) {
+                order.push(v, priority(v));
+            }
+            int next = 0;
+            while (!order.isEmpty()) {
+                int v = order.pop();
+                double p = priority(v);
+                if (!order.isEmpty() && p > order.minKey()) {
+                    order.push(v, p);
+                    continue;
+                }
+                contract(v, true);
+                contracted[v] = true;
+                rank[v] = next;
+                next += 1;
+                for (int i = 0; i < degree[v]; i += 1) {
+                    contractedNeighbors[neighbors[v][i]] += 1;
+                }
+            }
+            return upwardGraph();
+        }
+
+        /** Edge difference of v, plus a term that spreads contraction evenly over the map. */
+        private double priority(int v) {
+            int shortcuts = contract(v, false);
+            return shortcuts - collectAround(v) + contractedNeighbors[v];
+        }
+
+        /**
+         * Finds the shortcuts needed to contract v, and adds them if apply is true.
+         * Returns the number of shortcuts needed.
+         */
+        private int contract(int v, boolean apply) {
+            int k = collectAround(v);
+            double maxOut = 0;
+            for (int i = 0; i < k; i += 1) {
+                maxOut = Math.max(maxOut, aroundWeight[i]);
+            }
+            int shortcuts = 0;
+            for (int i = 0; i < k; i += 1) {
+                int u = around[i];
+                double viaV = aroundWeight[i];
+                witnessSearch(u, v, viaV + maxOut,
+                        apply ? WITNESS_SETTLE_LIMIT : SIMULATED_WITNESS_SETTLE_LIMIT);
+                for (int j = i + 1; j < k; j += 1) {
+                    int x = around[j];
+                    double d = viaV + aroundWeight[j];
+                    if (witnessStamp[x] != witnessEpoch || witnessDist[x] > d) {
+                        shortcuts += 1;
+                        if (apply) {
+                            addEdge(u, x, d, v);
+                            addEdge(x, u, d, v);
+                        }
+                    }
+                }
+            }
+            return shortcuts;
+        }
+
+        /** Copies the uncontracted neighbors of v into around; returns how many there are. */
+        private int collectAround(int v) {
+            if (around.length < degree[v]) {
+                around = new int[degree[v]];
+                aroundWeight = new double[degree[v]];
+            }
+            int k = 0;
+            for (int i = 0; i < degree[v]; i += 1) {
+                int w = neighbors[v][i];
+                if (!contracted[w]) {
+                    around[k] = w;
+                    aroundWeight[k] = weights[v][i];
+                    k += 1;
+                }
+            }
+            return k;
+        }
+
+        /**
+         * Dijkstra from source over uncontracted vertices, avoiding skip, that stops at
+         * distance limit or after settling settleLimit vertices.
+         */
+        private void witnessSearch(int source, int skip, double limit, int settleLimit) {
+            witnessEpoch += 1;
+            witnessQueue.clear();
+            witnessStamp[source] = witnessEpoch;
+            witnessDist[source] = 0;
+            witnessQueue.push(source, 0);
+            int settled = 0;
+            while (!witnessQueue.isEmpty() && settled < settleLimit) {
+                if (witnessQueue.minKey() > limit) {
+                    break;
+                }
+                int v = witnessQueue.pop();
+                settled += 1;
+                double dv = witnessDist[v];
+                for (int i = 0; i < degree[v]; i += 1) {
+                    int w = neighbors[v][i];
+                    if (w == skip || contracted[w]) {
+                        continue;
+                    }
+                    double d = dv + weights[v][i];
+                    if (witnessStamp[w] != witnessEpoch || d < witnessDist[w]) {
+                        witnessStamp[w] = witnessEpoch;
+                        witnessDist[w] = d;
+                        witnessQueue.push(w, d);
+                    }
+                }
+            }
+        }
+
+        /** Adds the edge u-x, or shortens the existing one if the new edge is shorter. */
+        private void addEdge(int u, int x, double weight, int middle) {
+            for (int i = 0; i < degree[u]; i += 1) {
+                if (neighbors[u][i] == x) {
+                    if (weight < weights[u][i]) {
+                        weights[u][i] = weight;
+                        middles[u][i] = middle;
+                    }
+                    return;
+                }
+            }
+            if (degree[u] == neighbors[u].length) {
+                neighbors[u] = Arrays.copyOf(neighbors[u], degree[u] * 2);
+                weights[u] = Arrays.copyOf(weights[u], degree[u] * 2);
+                middles[u] = Arrays.copyOf(middles[u], degree[u] * 2);
+            }
+            neighbors[u][degree[u]] = x;
+            weights[u][degree[u]] = weight;
+            middles[u][degree[u]] = middle;
+            degree[u] += 1;
+        }
+
+        /** Keeps, for every vertex, only the edges leading to higher-ranked vertices. */
+        private ContractionHierarchy upwardGraph() {
+            int[] offsets = new int[n + 1];
+            for (int v = 0; v < n; v += 1) {
+                int up = 0;
+                for (int i = 0; i < degree[v]; i += 1) {
+                    if (rank[neighbors[v][i]] > rank[v]) {
+                        up += 1;
+                    }
+                }
+                offsets[v + 1] = offsets[v] + up;
+            }
+            int m = offsets[n];
+            int[] targets = new int[m];
+            double[] upWeights = new double[m];
+            int[] upMiddles = new int[m];
+            for (int v = 0; v < n; v += 1) {
+                int e = offsets[v];
+                for (int i = 0; i < degree[v]; i += 1) {
+                    if (rank[neighbors[v][i]] > rank[v]) {
+                        targets[e] = neighbors[v][i];
+                        upWeights[e] = weights[v][i];
+                        upMiddles[e] = middles[v][i];
+                        e += 1;
+                    }
+                }
+            }
+            return new ContractionHierarchy(metric, rank, offsets, targets, upWeights,
+                    upMiddles);
+        }
+    }
+}
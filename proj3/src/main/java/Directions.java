@@ -0,0 +1,156 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Turn-by-turn directions for a route. A route is compressed into maneuvers in a single pass
+ * over its vertices: each step finds the edge it travels (a binary search in the sorted
+ * adjacency row) and that edge's street in GraphDB's street table, and a new maneuver starts
+ * wherever the street name changes. The turn onto the new street is classified by the change
+ * in bearing between the last edge on the old street and the first edge on the new one.
+ */
+final class Directions {
+    /** How a maneuver turns onto its street. */
+    enum Turn {
+        START("Start"), STRAIGHT("Go straight"), SLIGHT_LEFT("Slight left"),
+        SLIGHT_RIGHT("Slight right"), LEFT("Turn left"), RIGHT("Turn right"),
+        SHARP_LEFT("Sharp left"), SHARP_RIGHT("Sharp right");
+
+        private final String text;
+
+        Turn(String text) {
+            this.text = text;
+        }
+    }
+
+    /** Street name shown for roads that have none. */
+    static final String UNNAMED = "unknown road";
+
+    /** One stretch of a route along a single street. */
+    static final class Maneuver {
+        private final Turn turn;
+        private final String street;
+        private final double lon;
+        private final double lat;
+        private final double meters;
+        private final double seconds;
+
+        Maneuver(Turn turn, String street, double lon, double lat, double meters,
+                 double seconds) {
+            this.turn = turn;
+            this.street = street;
+            this.lon = lon;
+            this.lat = lat;
+            this.meters = meters;
+            this.seconds = seconds;
+        }
+
+        Turn turn() {
+            return turn;
+        }
+
+        /** Name of the street, or UNNAMED. */
+        String street() {
+            return street;
+        }
+
+        /** Longitude of the point where the maneuver starts. */
+        double lon() {
+            return lon;
+        }
+
+        /** Latitude of the point where the maneuver starts. */
+        double lat() {
+            return lat;
+        }
+
+        /** Approximate length of the stretch, in meters. */
+        double meters() {
+            return meters;
+        }
+
+        /** Travel time of the stretch at the speed limits, in seconds. */
+        double seconds() {
+            return seconds;
+        }
+
+        /** The maneuver as a sentence, e.g. "Turn left on Bancroft Way for 240 m." */
+        @Override
+        public String toString() {
+            String length = meters < 1000 ? Math.round(meters / 10) * 10 + " m"
+                    : Math.round(meters / 100) / 10.0 + " km";
+            return turn.text + " on " + street + " for " + length + ".";
+        }
+    }
+
+    private Directions() {
+    }
+
+    /**
+     * Returns the maneuvers that follow route on g, in order; empty if the route has fewer than
+     * two vertices.
+     * @throws IllegalArgumentException if two consecutive vertices of route are not adjacent.
+     */
+    static List<Maneuver> of(GraphDB g, RouteSnapshot route) {
+        if (route.size() < 2) {
+            return Collections.emptyList();
+        }
+        List<Maneuver> maneuvers = new ArrayList<>();
+        int start = g.index(route.id(0));
+        int v = start;
+        String name = null;
+        Turn turn = Turn.START;
+        double meters = 0;
+        double seconds = 0;
+        double lastBearing = 0;
+        for (int i = 1; i < route.size(); i += 1) {
+            int w = g.index(route.id(i));
+            int e = v < 0 || w < 0 ? -1 : g.edgeSlot(v, w);
+            if (e < 0) {
+                throw new IllegalArgumentException("Route jumps from " + route.id(i - 1)
+                        + " to " + route.id(i));
+            }
+            String street = g.streetName(g.edgeStreet(e));
+            double bearing = g.bearing(v, w);
+            if (name != null && !street.equals(name)) {
+                maneuvers.add(maneuver(g, turn, name, start, meters, seconds));
+                turn = turn(lastBearing, bearing);
+                start = v;
+                meters = 0;
+                seconds = 0;
+            }
+            name = street;
+            meters += g.meters(v, w);
+            seconds += g.weight(GraphDB.Metric.TIME, v, e);
+            lastBearing = bearing;
+            v = w;
+        }
+        maneuvers.add(maneuver(g, turn, name, start, meters, seconds));
+        return maneuvers;
+    }
+
+    private static Maneuver maneuver(GraphDB g, Turn turn, String name, int start,
+                                     double meters, double seconds) {
+        return new Maneuver(turn, name.isEmpty() ? UNNAMED : name, g.lonAt(start),
+                g.latAt(start), meters, seconds);
+    }
+
+    /** Classifies the turn from a heading of fromBearing to one of toBearing, in degrees. */
+    static Turn turn(double fromBearing, double toBearing) {
+        double delta = toBearing - fromBearing;
+        if (delta > 180) {
+            delta -= 360;
+        } else if (delta <= -180) {
+            delta += 360;
+        }
+        double angle = Math.abs(delta);
+        if (angle <= 15) {
+            return Turn.STRAIGHT;
+        } else if (angle <= 30) {
+            return delta < 0 ? Turn.SLIGHT_LEFT : Turn.SLIGHT_RIGHT;
+        } else if (angle <= 100) {
+            return delta < 0 ? Turn.LEFT : Turn.RIGHT;
+        }
+        return delta < 0 ? Turn.SHARP_LEFT : Turn.SHARP_RIGHT;
+    }
+}
@@ -0,0 +1,353 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Accumulates the nodes, named locations and road segments reported by the OSM parser, and
+ * turns them into the compressed sparse row (CSR) arrays that back a GraphDB. Everything is
+ * kept in growable primitive arrays so that no OSM id is ever boxed while a map is loaded.
+ *
+ * Vertices are given dense int indices in increasing order of their OSM ids, so that the
+ * sorted id array doubles as the id-to-index table (see {@link #indexOf(long[], long)}).
+ *
+ * Every road segment also carries the index of its street: a distinct (name, speed limit)
+ * pair of the ways it came from, interned in a table that holds each pair once. A map has a
+ * few thousand streets but hundreds of thousands of segments, so one int per segment is all
+ * the way metadata costs.
+ */
+class GraphBuilder {
+    private static final int INITIAL_CAPACITY = 1 << 12;
+
+    private long[] nodeIds = new long[INITIAL_CAPACITY];
+    private double[] nodeLons = new double[INITIAL_CAPACITY];
+    private double[] nodeLats = new double[INITIAL_CAPACITY];
+    private int numNodes;
+
+    private long[] locationIds = new long[INITIAL_CAPACITY];
+    private double[] locationLons = new double[INITIAL_CAPACITY];
+    private double[] locationLats = new double[INITIAL_CAPACITY];
+    private String[] locationNames = new String[INITIAL_CAPACITY];
+    private int numLocations;
+
+    /** Endpoints of every road segment, as OSM ids; segment i is (edgeFrom[i], edgeTo[i]). */
+    private long[] edgeFrom = new long[INITIAL_CAPACITY];
+    private long[] edgeTo = new long[INITIAL_CAPACITY];
+    private int[] edgeStreets = new int[INITIAL_CAPACITY];
+    private int numEdges;
+
+    /** Interned streets: names ("" if unnamed) and speed limits in km/h, by street index. */
+    private String[] streetNames = new String[64];
+    private double[] streetSpeeds = new double[64];
+    private int numStreets;
+    private final Map<String, Integer> streetIndex = new HashMap<>();
+
+    /** Records a node with the given id and position. */
+    void addNode(long id, double lon, double lat) {
+        if (numNodes == nodeIds.length) {
+            int capacity = numNodes * 2;
+            nodeIds = Arrays.copyOf(nodeIds, capacity);
+            nodeLons = Arrays.copyOf(nodeLons, capacity);
+            nodeLats = Arrays.copyOf(nodeLats, capacity);
+        }
+        nodeIds[numNodes] = id;
+        nodeLons[numNodes] = lon;
+        nodeLats[numNodes] = lat;
+        numNodes += 1;
+    }
+
+    /** Records a named location at the given node. Locations are kept in file order. */
+    void addLocation(long id, double lon, double lat, String name) {
+        if (numLocations == locationIds.length) {
+            int capacity = numLocations * 2;
+            locationIds = Arrays.copyOf(locationIds, capacity);
+            locationLons = Arrays.copyOf(locationLons, capacity);
+            locationLats = Arrays.copyOf(locationLats, capacity);
+            locationNames = Arrays.copyOf(locationNames, capacity);
+        }
+        locationIds[numLocations] = id;
+        locationLons[numLocations] = lon;
+        locationLats[numLocations] = lat;
+        locationNames[numLocations] = name;
+        numLocations += 1;
+    }
+
+    /**
+     * Connects each consecutive pair of the first n node references of a way.
+     * @param refs OSM ids of the nodes of the way, in order.
+     * @param n Number of valid entries in refs.
+     * @param name Name of the way, or null if it has none.
+     * @param speed Speed limit of the way, in km/h.
+     */
+    void addWay(long[] refs, int n, String name, double speed) {
+        int street = street(name == null ? "" : name, speed);
+        for (int i = 1; i < n; i += 1) {
+            addEdge(refs[i - 1], refs[i], street);
+        }
+    }
+
+    /** Records an undirected road segment of the given street between the nodes v and w. */
+    void addEdge(long v, long w, int street) {
+        if (v == w) {
+            return;
+        }
+        if (numEdges == edgeFrom.length) {
+            int capacity = numEdges * 2;
+            edgeFrom = Arrays.copyOf(edgeFrom, capacity);
+            edgeTo = Arrays.copyOf(edgeTo, capacity);
+            edgeStreets = Arrays.copyOf(edgeStreets, capacity);
+        }
+        edgeFrom[numEdges] = v;
+        edgeTo[numEdges] = w;
+        edgeStreets[numEdges] = street;
+        numEdges += 1;
+    }
+
+    /** Returns the index of the street with the given name and speed, adding it if new. */
+    int street(String name, double speed) {
+        String key = name + '\u0000' + speed;
+        Integer s = streetIndex.get(key);
+        if (s != null) {
+            return s;
+        }
+        if (numStreets == streetNames.length) {
+            streetNames = Arrays.copyOf(streetNames, numStreets * 2);
+            streetSpeeds = Arrays.copyOf(streetSpeeds, numStreets * 2);
+        }
+        streetNames[numStreets] = name;
+        streetSpeeds[numStreets] = speed;
+        streetIndex.put(key, numStreets);
+        numStreets += 1;
+        return numStreets - 1;
+    }
+
+    /**
+     * Appends everything recorded by other after what this builder recorded, as if it had been
+     * reported here in that order.
+     */
+    void append(GraphBuilder other) {
+        int nodes = numNodes + other.numNodes;
+        nodeIds = grow(nodeIds, nodes);
+        nodeLons = grow(nodeLons, nodes);
+        nodeLats = grow(nodeLats, nodes);
+        System.arraycopy(other.nodeIds, 0, nodeIds, numNodes, other.numNodes);
+        System.arraycopy(other.nodeLons, 0, nodeLons, numNodes, other.numNodes);
+        System.arraycopy(other.nodeLats, 0, nodeLats, numNodes, other.numNodes);
+        numNodes = nodes;
+
+        int locations = numLocations + other.numLocations;
+        locationIds = grow(locationIds, locations);
+        locationLons = grow(locationLons, locations);
+        locationLats = grow(locationLats, locations);
+        if (locations > locationNames.length) {
+            locationNames = Arrays.copyOf(locationNames, locations);
+        }
+        System.arraycopy(other.locationIds, 0, locationIds, numLocations, other.numLocations);
+        System.arraycopy(other.locationLons, 0, locationLons, numLocations, other.numLocations);
+        System.arraycopy(other.locationLats, 0, locationLats, numLocations, other.numLocations);
+        System.arraycopy(other.locationNames, 0, locationNames, numLocations,
+                other.numLocations);
+        numLocations = locations;
+
+        /* Streets are interned in order of first use, so re-interning other's streets in
+         * its order numbers them as if they had been reported here. */
+        int[] streets = new int[other.numStreets];
+        for (int s = 0; s < other.numStreets; s += 1) {
+            streets[s] = street(other.streetNames[s], other.streetSpeeds[s]);
+        }
+        int edges = numEdges + other.numEdges;
+        edgeFrom = grow(edgeFrom, edges);
+        edgeTo = grow(edgeTo, edges);
+        if (edges > edgeStreets.length) {
+            edgeStreets = Arrays.copyOf(edgeStreets, Math.max(edges, edgeStreets.length * 2));
+        }
+        System.arraycopy(other.edgeFrom, 0, edgeFrom, numEdges, other.numEdges);
+        System.arraycopy(other.edgeTo, 0, edgeTo, numEdges, other.numEdges);
+        for (int i = 0; i < other.numEdges; i += 1) {
+            edgeStreets[numEdges + i] = streets[other.edgeStreets[i]];
+        }
+        numEdges = edges;
+    }
+
+    private static long[] grow(long[] a, int capacity) {
+        return capacity > a.length ? Arrays.copyOf(a, Math.max(capacity, a.length * 2)) : a;
+    }
+
+    private static double[] grow(double[] a, int capacity) {
+        return capacity > a.length ? Arrays.copyOf(a, Math.max(capacity, a.length * 2)) : a;
+    }
+
+    /* Read access to what has been recorded, in the order it was reported. */
+
+    int nodeCount() {
+        return numNodes;
+    }
+
+    long nodeId(int i) {
+        return nodeIds[i];
+    }
+
+    double nodeLon(int i) {
+        return nodeLons[i];
+    }
+
+    double nodeLat(int i) {
+        return nodeLats[i];
+    }
+
+    int locationCount() {
+        return numLocations;
+    }
+
+    long locationId(int i) {
+        return locationIds[i];
+    }
+
+    double locationLon(int i) {
+        return locationLons[i];
+    }
+
+    double locationLat(int i) {
+        return locationLats[i];
+    }
+
+    String locationName(int i) {
+        return locationNames[i];
+    }
+
+    /** Number of road segments; consecutive segments of one way share an endpoint. */
+    int edgeCount() {
+        return numEdges;
+    }
+
+    long edgeFrom(int i) {
+        return edgeFrom[i];
+    }
+
+    long edgeTo(int i) {
+        return edgeTo[i];
+    }
+
+    /** Street index of the i-th road segment. */
+    int edgeStreet(int i) {
+        return edgeStreets[i];
+    }
+
+    /** Number of distinct streets, numbered in order of first use. */
+    int streetCount() {
+        return numStreets;
+    }
+
+    String streetName(int s) {
+        return streetNames[s];
+    }
+
+    double streetSpeed(int s) {
+        return streetSpeeds[s];
+    }
+
+    /** Returns the dense index of id in the sorted array ids, or -1 if it is absent. */
+    static int indexOf(long[] ids, long id) {
+        int i = Arrays.binarySearch(ids, id);
+        return i < 0 ? -1 : i;
+    }
+
+    /**
+     * Builds the CSR arrays of everything recorded so far and hands them to g. Segments that
+     * refer to nodes never seen are dropped, as are duplicate segments; where several ways
+     * share a segment it keeps the street with the highest speed limit. The id table is
+     * sorted, segment endpoints resolved against it, and adjacency rows sorted on the common
+     * fork-join pool; each of these steps writes disjoint slots, so the result is the same
+     * as a sequential build.
+     */
+    void buildInto(GraphDB g) {
+        long[] ids = Arrays.copyOf(nodeIds, numNodes);
+        Arrays.parallelSort(ids);
+        int n = 0;
+        for (int i = 0; i < ids.length; i += 1) {
+            if (n == 0 || ids[n - 1] != ids[i]) {
+                ids[n] = ids[i];
+                n += 1;
+            }
+        }
+        ids = Arrays.copyOf(ids, n);
+
+        double[] lons = new double[n];
+        double[] lats = new double[n];
+        for (int i = 0; i < numNodes; i += 1) {
+            int v = indexOf(ids, nodeIds[i]);
+            lons[v] = nodeLons[i];
+            lats[v] = nodeLats[i];
+        }
+
+        /* Resolve both endpoints of every segment once, in parallel, then count degrees. */
+        long[] sortedIds = ids;
+        int[] from = new int[numEdges];
+        int[] to = new int[numEdges];
+        IntStream.range(0, numEdges).parallel().forEach(i -> {
+            from[i] = indexOf(sortedIds, edgeFrom[i]);
+            to[i] = indexOf(sortedIds, edgeTo[i]);
+        });
+        int[] offsets = new int[n + 1];
+        int[] streets = new int[numEdges];
+        int m = 0;
+        for (int i = 0; i < numEdges; i += 1) {
+            int v = from[i];
+            int w = to[i];
+            if (v < 0 || w < 0) {
+                continue;
+            }
+            from[m] = v;
+            to[m] = w;
+            streets[m] = edgeStreets[i];
+            offsets[v + 1] += 1;
+            offsets[w + 1] += 1;
+            m += 1;
+        }
+        for (int v = 0; v < n; v += 1) {
+            offsets[v + 1] += offsets[v];
+        }
+
+        /* Each slot packs its target above its street, so sorting a row by slot sorts it by
+         * target and keeps the segments between the same two vertices together. */
+        long[] slots = new long[offsets[n]];
+        int[] next = Arrays.copyOf(offsets, n);
+        for (int i = 0; i < m; i += 1) {
+            slots[next[from[i]]++] = (long) to[i] << 32 | streets[i];
+            slots[next[to[i]]++] = (long) from[i] << 32 | streets[i];
+        }
+
+        /* Sort each adjacency row and squeeze out segments shared by several ways. */
+        int[] rows = offsets;
+        IntStream.range(0, n).parallel().forEach(v -> Arrays.sort(slots, rows[v], rows[v + 1]));
+        int[] targets = new int[slots.length];
+        int[] slotStreets = new int[slots.length];
+        int e = 0;
+        for (int v = 0; v < n; v += 1) {
+            int start = offsets[v];
+            int end = offsets[v + 1];
+            offsets[v] = e;
+            for (int i = start; i < end; i += 1) {
+                int target = (int) (slots[i] >>> 32);
+                int street = (int) slots[i];
+                if (i == start || target != targets[e - 1]) {
+                    targets[e] = target;
+                    slotStreets[e] = street;
+                    e += 1;
+                } else if (streetSpeeds[street] > streetSpeeds[slotStreets[e - 1]]) {
+                    slotStreets[e - 1] = street;
+                }
+            }
+        }
+        offsets[n] = e;
+
+        g.setVertices(ids, lons, lats, offsets, Arrays.copyOf(targets, e),
+                Arrays.copyOf(slotStreets, e));
+        g.setStreets(Arrays.copyOf(streetNames, numStreets),
+                Arrays.copyOf(streetSpeeds, numStreets));
+        g.setLocations(Arrays.copyOf(locationIds, numLocations),
+                Arrays.copyOf(locationLons, numLocations),
+                Arrays.copyOf(locationLats, numLocations),
+                Arrays.copyOf(locationNames, numLocations));
+    }
+}
@@ -3,7 +3,9 @@ import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -32,13 +34,45 @@ public class GraphBuildingHandler extends DefaultHandler {
      * roads, but in practice we walk all over them with such impunity that we forget cars can
      * actually drive on them.
      */
-    private static final Set<String> ALLOWED_HIGHWAY_TYPES = new HashSet<>(Arrays.asList
+    static final Set<String> ALLOWED_HIGHWAY_TYPES = new HashSet<>(Arrays.asList
             ("motorway", "trunk", "primary", "secondary", "tertiary", "unclassified",
                     "residential", "living_street", "motorway_link", "trunk_link", "primary_link",
                     "secondary_link", "tertiary_link"));
+    /**
+     * Speed, in km/h, assumed for each allowed highway type when a way has no usable maxspeed
+     * tag. These are typical urban limits, so they only need to rank the road types sensibly.
+     */
+    private static final Map<String, Double> DEFAULT_SPEEDS = new HashMap<>();
+    private static final double MPH = 1.609344;
+
+    static {
+        String[] types = {"motorway", "trunk", "primary", "secondary", "tertiary",
+            "unclassified", "residential", "living_street", "motorway_link", "trunk_link",
+            "primary_link", "secondary_link", "tertiary_link"};
+        double[] speeds = {100, 80, 60, 50, 45, 40, 40, 10, 60, 50, 45, 40, 40};
+        for (int i = 0; i < types.length; i += 1) {
+            DEFAULT_SPEEDS.put(types[i], speeds[i]);
+        }
+    }
+
     private String activeState = "";
     private final GraphDB g;
 
+    /** The node currently being read, so that its name tag can be attached to it. */
+    private long lastNodeId;
+    private double lastNodeLon;
+    private double lastNodeLat;
+
+    /** Node references of the way currently being read, reused from one way to the next. */
+    private long[] wayRefs = new long[64];
+    private int wayLength;
+    /** Whether the way currently being read is a road we are allowed to travel on. */
+    private boolean wayValid;
+    /** Highway, name and maxspeed tags of the way currently being read, or null. */
+    private String wayHighway;
+    private String wayName;
+    private String wayMaxspeed;
+
     public GraphBuildingHandler(GraphDB g) {
         this.g = g;
     }
@@ -60,55 +94,46 @@ public class GraphBuildingHandler extends DefaultHandler {
     @Override
     public void startElement(String uri, String localName, String qName, Attributes attributes)
             throws SAXException {
-        /* Some example code on how you might begin to parse XML files. */
         if (qName.equals("node")) {
             /* We encountered a new <node...> tag. */
             activeState = "node";
-//            System.out.println("Node id: " + attributes.getValue("id"));
-//            System.out.println("Node lon: " + attributes.getValue("lon"));
-//            System.out.println("Node lat: " + attributes.getValue("lat"));
-
-            /* TODO Use the above information to save a "node" to somewhere. */
-            /* Hint: A graph-like structure would be nice. */
-
+            lastNodeId = Long.parseLong(attributes.getValue("id"));
+            lastNodeLon = Double.parseDouble(attributes.getValue("lon"));
+            lastNodeLat = Double.parseDouble(attributes.getValue("lat"));
+            g.addNode(lastNodeId, lastNodeLon, lastNodeLat);
         } else if (qName.equals("way")) {
             /* We encountered a new <way...> tag. */
             activeState = "way";
-//            System.out.println("Beginning a way...");
+            wayLength = 0;
+            wayValid = false;
+            wayHighway = null;
+            wayName = null;
+            wayMaxspeed = null;
         } else if (activeState.equals("way") && qName.equals("nd")) {
-            /* While looking at a way, we found a <nd...> tag. */
-            //System.out.println("Id of a node in this way: " + attributes.getValue("ref"));
-
-            /* TODO Use the above id to make "possible" connections between the nodes in this way */
-            /* Hint1: It would be useful to remember what was the last node in this way. */
-            /* Hint2: Not all ways are valid. So, directly connecting the nodes here would be
-            cumbersome since you might have to remove the connections if you later see a tag that
-            makes this way invalid. Instead, think of keeping a list of possible connections and
-            remember whether this way is valid or not. */
-
+            /* While looking at a way, we found a <nd...> tag. Remember it as a possible
+            connection; the way is only known to be valid once its tags have been read. */
+            if (wayLength == wayRefs.length) {
+                wayRefs = Arrays.copyOf(wayRefs, wayLength * 2);
+            }
+            wayRefs[wayLength] = Long.parseLong(attributes.getValue("ref"));
+            wayLength += 1;
         } else if (activeState.equals("way") && qName.equals("tag")) {
             /* While looking at a way, we found a <tag...> tag. */
             String k = attributes.getValue("k");
             String v = attributes.getValue("v");
-            if (k.equals("maxspeed")) {
-                //System.out.println("Max Speed: " + v);
-                /* TODO set the max speed of the "current way" here. */
-            } else if (k.equals("highway")) {
-                //System.out.println("Highway type: " + v);
-                /* TODO Figure out whether this way and its connections are valid. */
-                /* Hint: Setting a "flag" is good enough! */
+            if (k.equals("highway")) {
+                wayValid = ALLOWED_HIGHWAY_TYPES.contains(v);
+                wayHighway = v;
             } else if (k.equals("name")) {
-                //System.out.println("Way Name: " + v);
+                wayName = v;
+            } else if (k.equals("maxspeed")) {
+                wayMaxspeed = v;
             }
-//            System.out.println("Tag with k=" + k + ", v=" + v + ".");
         } else if (activeState.equals("node") && qName.equals("tag") && attributes.getValue("k")
                 .equals("name")) {
-            /* While looking at a node, we found a <tag...> with k="name". */
-            /* TODO Create a location. */
-            /* Hint: Since we found this <tag...> INSIDE a node, we should probably remember which
-            node this tag belongs to. Remember XML is parsed top-to-bottom, so probably it's the
-            last node that you looked at (check the first if-case). */
-//            System.out.println("Node's name: " + attributes.getValue("v"));
+            /* While looking at a node, we found a <tag...> with k="name". Since XML is parsed
+            top-to-bottom, it belongs to the last node that we looked at. */
+            g.addLocation(lastNodeId, lastNodeLon, lastNodeLat, attributes.getValue("v"));
         }
     }
 
@@ -126,11 +151,42 @@ public class GraphBuildingHandler extends DefaultHandler {
     @Override
     public void endElement(String uri, String localName, String qName) throws SAXException {
         if (qName.equals("way")) {
-            /* We are done looking at a way. (We finished looking at the nodes, speeds, etc...)*/
-            /* Hint1: If you have stored the possible connections for this way, here's your
-            chance to actually connect the nodes together if the way is valid. */
-//            System.out.println("Finishing a way...");
+            /* We are done looking at a way. (We finished looking at the nodes, speeds, etc...)
+            If the way turned out to be a road, connect its nodes together. */
+            if (wayValid) {
+                g.addWay(wayRefs, wayLength, wayName, speedOf(wayHighway, wayMaxspeed));
+            }
+            wayLength = 0;
+            activeState = "";
+        } else if (qName.equals("node")) {
+            activeState = "";
         }
     }
 
+    /**
+     * Returns the speed limit, in km/h, of a way with the given highway and maxspeed tags.
+     * A maxspeed such as "40" or "25 mph" is used as is; anything else ("none", "signals",
+     * "US:urban", or no tag at all) falls back to the default speed of the highway type.
+     */
+    static double speedOf(String highway, String maxspeed) {
+        if (maxspeed != null) {
+            int end = 0;
+            while (end < maxspeed.length() && (Character.isDigit(maxspeed.charAt(end))
+                    || maxspeed.charAt(end) == '.')) {
+                end += 1;
+            }
+            if (end > 0) {
+                try {
+                    double speed = Double.parseDouble(maxspeed.substring(0, end));
+                    if (speed > 0) {
+                        return maxspeed.contains("mph") ? speed * MPH : speed;
+                    }
+                } catch (NumberFormatException e) {
+                    /* Something like "5.5.5"; use the default below. */
+                }
+            }
+        }
+        Double speed = DEFAULT_SPEEDS.get(highway);
+        return speed == null ? DEFAULT_SPEEDS.get("unclassified") : speed;
+    }
 }
@@ -2,10 +2,17 @@ import org.xml.sax.SAXException;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.stream.IntStream;
 
 /**
  * Graph for storing all of the intersection (vertex) and road (edge) information.
@@ -14,28 +21,185 @@ import java.util.ArrayList;
  * methods. You'll also need to include instance variables and methods for
  * modifying the graph (e.g. addNode and addEdge).
  *
+ * The graph is stored in compressed sparse row form. Every vertex has a dense int index in
+ * [0, size()), assigned in increasing order of OSM id; coordinates are kept in parallel
+ * double arrays and the neighbors of vertex v are targets[offsets[v]] up to (but excluding)
+ * targets[offsets[v + 1]]. The index-based accessors (e.g. {@link #edgeStart(int)}) let
+ * callers walk the graph without allocating or boxing anything.
+ *
+ * Each edge slot also records its street, an index into a small table of interned way names
+ * and speed limits, from which edges are weighted by length or by travel time (see Metric).
+ *
  * @author Alan Yao, Josh Hug
  */
 public class GraphDB {
-    /** Your instance variables for storing the graph. You should consider
-     * creating helper classes, e.g. Node, Edge, etc. */
+    /** Ways of reading an OSM XML file. */
+    enum OsmParser {
+        /** SAX with GraphBuildingHandler. */
+        SAX,
+        /** One OsmReader over the whole file. */
+        STREAM,
+        /** OsmReaders over chunks of the file in parallel; see ParallelOsmReader. */
+        PARALLEL
+    }
+
+    /**
+     * How OSM files are read; set with the system property bearmaps.osmParser to sax, stream
+     * or parallel (the default). All three build the same graph.
+     */
+    private static final OsmParser PARSER = parserOf(
+            System.getProperty("bearmaps.osmParser"));
+    private static final int[] NO_LOCATIONS = new int[0];
+    /** Length of a degree of latitude, in meters. */
+    static final double METERS_PER_DEGREE = 111_195;
+
+    /** What a route minimizes. */
+    enum Metric {
+        /** Euclidean length in degrees, as returned by distance. */
+        DISTANCE,
+        /** Travel time in seconds at each street's speed limit. */
+        TIME
+    }
+
+    /** Sorted OSM ids of the vertices; the index of an id is its dense vertex index. */
+    private long[] ids;
+    private double[] lons;
+    private double[] lats;
+    /** CSR adjacency: the neighbors of v are targets[offsets[v]..offsets[v + 1]). */
+    private int[] offsets;
+    private int[] targets;
+    /** Street of each edge slot, an index into streetNames and streetSpeeds. */
+    private int[] edgeStreets;
+
+    /** Interned streets: names ("" if unnamed) and speed limits in km/h. */
+    private String[] streetNames;
+    private double[] streetSpeeds;
+    /** Highest speed limit of any street, which bounds the travel time heuristic. */
+    private double maxSpeed;
+    /** Length of a degree of longitude relative to a degree of latitude, at mid-map. */
+    private double lonScale;
+
+    /** Every named node of the map, in file order, whether or not it lies on a road. */
+    private long[] locationIds;
+    private double[] locationLons;
+    private double[] locationLats;
+    private String[] locationNames;
+
+    /** Spatial index over the vertices, built once the graph is cleaned. */
+    private KdTree spatialIndex;
+    /** Autocomplete index over the location names. */
+    private PrefixIndex prefixIndex;
+    /** Positions in the location arrays of the locations with each cleaned name, in order. */
+    private Map<String, int[]> locationsByName;
+
+    /** Optional contraction hierarchies used by Router, by metric; null to route with A*. */
+    private final ContractionHierarchy[] hierarchies =
+            new ContractionHierarchy[Metric.values().length];
+
+    /** Collects nodes and ways while the XML file is parsed; null once the graph is built. */
+    private GraphBuilder builder;
+
+    /**
+     * Returns the parser named, ignoring case, or PARALLEL if name is null. An unknown name
+     * also gets PARALLEL, with a warning, so that a mistyped property does not stop the server.
+     */
+    static OsmParser parserOf(String name) {
+        if (name == null) {
+            return OsmParser.PARALLEL;
+        }
+        try {
+            return OsmParser.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown bearmaps.osmParser " + name + "; expected one of "
+                    + Arrays.toString(OsmParser.values()).toLowerCase()
+                    + ". Using parallel.");
+            return OsmParser.PARALLEL;
+        }
+    }
 
     /**
      * Example constructor shows how to create and start an XML parser.
      * You do not need to modify this constructor, but you're welcome to do so.
-     * @param dbPath Path to the XML file to be parsed.
+     * @param dbPath Path to the XML file to be parsed. It may be compressed with gzip (.gz) or
+     *               bzip2 (.bz2), or converted to OsmBlockFormat (.osmb).
      */
     public GraphDB(String dbPath) {
+        this(dbPath, PARSER);
+    }
+
+    /**
+     * Builds the graph of the OSM file at dbPath, reading it with the given parser unless it
+     * is in OsmBlockFormat. Compressed files are never split for the parallel parser.
+     */
+    GraphDB(String dbPath, OsmParser parser) {
+        builder = new GraphBuilder();
         try {
             File inputFile = new File(dbPath);
-            SAXParserFactory factory = SAXParserFactory.newInstance();
-            SAXParser saxParser = factory.newSAXParser();
-            GraphBuildingHandler gbh = new GraphBuildingHandler(this);
-            saxParser.parse(inputFile, gbh);
+            if (dbPath.endsWith(OsmBlockFormat.EXTENSION)) {
+                builder = OsmBlockFormat.read(inputFile);
+            } else if (parser == OsmParser.SAX) {
+                SAXParserFactory factory = SAXParserFactory.newInstance();
+                SAXParser saxParser = factory.newSAXParser();
+                GraphBuildingHandler gbh = new GraphBuildingHandler(this);
+                try (InputStream in = OsmReader.open(inputFile)) {
+                    saxParser.parse(in, gbh);
+                }
+            } else if (parser == OsmParser.PARALLEL && !OsmReader.isCompressed(dbPath)) {
+                builder = ParallelOsmReader.read(inputFile);
+            } else {
+                builder = OsmReader.parse(inputFile);
+            }
         } catch (ParserConfigurationException | SAXException | IOException e) {
             e.printStackTrace();
         }
+        GraphBuilder parsed = builder;
+        builder = null;
+        build(parsed);
+    }
+
+    /** Builds the graph of everything recorded in builder. */
+    GraphDB(GraphBuilder builder) {
+        build(builder);
+    }
+
+    private void build(GraphBuilder parsed) {
+        parsed.buildInto(this);
         clean();
+        buildIndexes();
+    }
+
+    /** Creates an empty graph, to be filled in from a snapshot. */
+    private GraphDB() {
+    }
+
+    /**
+     * Returns the graph of the OSM file at dbPath, loading it from its binary snapshot when one
+     * exists for the current version of the file. Otherwise the XML is parsed and a snapshot is
+     * written next to it for the next startup.
+     * @param dbPath Path to the XML file to be parsed.
+     */
+    static GraphDB open(String dbPath) {
+        File source = new File(dbPath);
+        File snapshot = new File(GraphSnapshot.snapshotPath(dbPath));
+        if (GraphSnapshot.isFresh(snapshot, source)) {
+            try {
+                GraphDB g = new GraphDB();
+                GraphSnapshot.read(snapshot, g);
+                g.buildIndexes();
+                return g;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        GraphDB g = new GraphDB(dbPath);
+        if (source.isFile()) {
+            try {
+                GraphSnapshot.write(g, source, snapshot);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return g;
     }
 
     /**
@@ -47,44 +211,398 @@ public class GraphDB {
         return s.replaceAll("[^a-zA-Z ]", "").toLowerCase();
     }
 
+    /** Adds a node read from the OSM file. Only valid while the graph is being built. */
+    void addNode(long id, double lon, double lat) {
+        builder.addNode(id, lon, lat);
+    }
+
+    /** Adds a named location read from the OSM file. */
+    void addLocation(long id, double lon, double lat, String name) {
+        builder.addLocation(id, lon, lat, name);
+    }
+
+    /**
+     * Connects consecutive nodes among the first n entries of refs, the nodes of a way with
+     * the given name (null if it has none) and speed limit in km/h.
+     */
+    void addWay(long[] refs, int n, String name, double speed) {
+        builder.addWay(refs, n, name, speed);
+    }
+
+    /** Installs the CSR arrays of the graph, and the street of every edge slot. */
+    void setVertices(long[] vertexIds, double[] vertexLons, double[] vertexLats,
+                     int[] edgeOffsets, int[] edgeTargets, int[] streets) {
+        ids = vertexIds;
+        lons = vertexLons;
+        lats = vertexLats;
+        offsets = edgeOffsets;
+        targets = edgeTargets;
+        edgeStreets = streets;
+    }
+
+    /** Installs the street table that edge slots refer to. */
+    void setStreets(String[] names, double[] speeds) {
+        streetNames = names;
+        streetSpeeds = speeds;
+    }
+
+    /** Installs the named locations of the map. */
+    void setLocations(long[] ids, double[] lons, double[] lats, String[] names) {
+        locationIds = ids;
+        locationLons = lons;
+        locationLats = lats;
+        locationNames = names;
+    }
+
     /**
      *  Remove nodes with no connections from the graph.
      *  While this does not guarantee that any two nodes in the remaining graph are connected,
      *  we can reasonably assume this since typically roads are connected.
      */
     private void clean() {
-        // TODO: Your code here.
+        /* rank[v] counts the connected vertices up to and including v, so a connected v
+         * moves to rank[v] - 1. Every step writes disjoint slots and runs in parallel. */
+        int n = ids.length;
+        int[] rank = new int[n];
+        Arrays.parallelSetAll(rank, v -> offsets[v + 1] > offsets[v] ? 1 : 0);
+        Arrays.parallelPrefix(rank, Integer::sum);
+        int kept = n == 0 ? 0 : rank[n - 1];
+
+        long[] keptIds = new long[kept];
+        double[] keptLons = new double[kept];
+        double[] keptLats = new double[kept];
+        int[] keptOffsets = new int[kept + 1];
+        IntStream.range(0, n).parallel().forEach(v -> {
+            if (offsets[v + 1] > offsets[v]) {
+                int k = rank[v] - 1;
+                keptIds[k] = ids[v];
+                keptLons[k] = lons[v];
+                keptLats[k] = lats[v];
+                keptOffsets[k] = offsets[v];
+            }
+        });
+        keptOffsets[kept] = offsets[n];
+        /* Only connected vertices are edge targets, so every target has a new index. */
+        Arrays.parallelSetAll(targets, e -> rank[targets[e]] - 1);
+        ids = keptIds;
+        lons = keptLons;
+        lats = keptLats;
+        offsets = keptOffsets;
+    }
+
+    /** Builds the lookup structures over the final, cleaned vertex set. */
+    private void buildIndexes() {
+        maxSpeed = 1;
+        for (double speed : streetSpeeds) {
+            maxSpeed = Math.max(maxSpeed, speed);
+        }
+        double minLat = Double.POSITIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        for (double lat : lats) {
+            minLat = Math.min(minLat, lat);
+            maxLat = Math.max(maxLat, lat);
+        }
+        lonScale = lats.length == 0 ? 1 : Math.cos(Math.toRadians((minLat + maxLat) / 2));
+        spatialIndex = new KdTree(lons, lats);
+        prefixIndex = new PrefixIndex(locationNames);
+        locationsByName = nameIndex(locationNames);
+    }
+
+    /**
+     * Groups the positions of names by cleaned name. Sorting the positions by cleaned name is
+     * stable, so each group keeps file order; each group is then one slice of the sorted
+     * positions.
+     */
+    private static Map<String, int[]> nameIndex(String[] names) {
+        int k = names.length;
+        String[] keys = new String[k];
+        Integer[] order = new Integer[k];
+        for (int i = 0; i < k; i += 1) {
+            keys[i] = cleanString(names[i]);
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparing(i -> keys[i]));
+        Map<String, int[]> index = new HashMap<>();
+        int lo = 0;
+        while (lo < k) {
+            String key = keys[order[lo]];
+            int hi = lo + 1;
+            while (hi < k && keys[order[hi]].equals(key)) {
+                hi += 1;
+            }
+            int[] group = new int[hi - lo];
+            for (int i = lo; i < hi; i += 1) {
+                group[i - lo] = order[i];
+            }
+            index.put(key, group);
+            lo = hi;
+        }
+        return index;
     }
 
     /** Returns an iterable of all vertex IDs in the graph. */
     Iterable<Long> vertices() {
-        //YOUR CODE HERE, this currently returns only an empty list.
-        return new ArrayList<Long>();
+        return () -> new IdIterator(null, 0, ids.length);
     }
 
     /** Returns ids of all vertices adjacent to v. */
     Iterable<Long> adjacent(long v) {
-        return null;
+        int i = checkedIndex(v);
+        return () -> new IdIterator(targets, offsets[i], offsets[i + 1]);
     }
 
     /** Returns the Euclidean distance between vertices v and w, where Euclidean distance
      *  is defined as sqrt( (lonV - lonV)^2 + (latV - latV)^2 ). */
     double distance(long v, long w) {
-        return 0;
+        return distance(checkedIndex(v), checkedIndex(w));
     }
 
     /** Returns the vertex id closest to the given longitude and latitude. */
     long closest(double lon, double lat) {
-        return 0;
+        int v = spatialIndex.nearest(lon, lat);
+        return v < 0 ? 0 : ids[v];
+    }
+
+    /**
+     * Returns the ids of the k vertices closest to the given longitude and latitude, closest
+     * first. Fewer are returned if the graph has fewer than k vertices.
+     */
+    long[] closest(double lon, double lat, int k) {
+        return toIds(spatialIndex.nearest(lon, lat, k));
+    }
+
+    /**
+     * Returns the ids of all vertices within Euclidean distance radius of the given longitude
+     * and latitude, closest first.
+     */
+    long[] within(double lon, double lat, double radius) {
+        return toIds(spatialIndex.within(lon, lat, radius));
     }
 
     /** Longitude of vertex v. */
     double lon(long v) {
-        return 0;
+        return lons[checkedIndex(v)];
     }
 
     /** Latitude of vertex v. */
     double lat(long v) {
-        return 0;
+        return lats[checkedIndex(v)];
+    }
+
+    /** Contraction hierarchy to route with under metric, or null if there is none. */
+    ContractionHierarchy hierarchy(Metric metric) {
+        return hierarchies[metric.ordinal()];
+    }
+
+    /**
+     * Makes Router answer queries under metric on this graph with ch; null switches back to
+     * A*.
+     */
+    void useHierarchy(Metric metric, ContractionHierarchy ch) {
+        if (ch != null && (ch.size() != size() || ch.metric() != metric)) {
+            throw new IllegalArgumentException("Hierarchy does not match the graph or metric.");
+        }
+        hierarchies[metric.ordinal()] = ch;
+    }
+
+    /** Number of vertices in the graph. */
+    int size() {
+        return ids.length;
+    }
+
+    /** Returns the dense index of the vertex with OSM id v, or -1 if there is no such vertex. */
+    int index(long v) {
+        return GraphBuilder.indexOf(ids, v);
+    }
+
+    /** Returns the OSM id of the vertex with dense index i. */
+    long id(int i) {
+        return ids[i];
+    }
+
+    /** Longitude of the vertex with dense index i. */
+    double lonAt(int i) {
+        return lons[i];
+    }
+
+    /** Latitude of the vertex with dense index i. */
+    double latAt(int i) {
+        return lats[i];
+    }
+
+    /** First edge slot of the vertex with dense index i. */
+    int edgeStart(int i) {
+        return offsets[i];
+    }
+
+    /** One past the last edge slot of the vertex with dense index i. */
+    int edgeEnd(int i) {
+        return offsets[i + 1];
+    }
+
+    /** Dense index of the vertex at the far end of edge slot e. */
+    int edgeTarget(int e) {
+        return targets[e];
+    }
+
+    /** Euclidean distance between the vertices with dense indices v and w. */
+    double distance(int v, int w) {
+        double dLon = lons[v] - lons[w];
+        double dLat = lats[v] - lats[w];
+        return Math.sqrt(dLon * dLon + dLat * dLat);
+    }
+
+    /**
+     * Approximate ground distance in meters between the vertices with dense indices v and w,
+     * treating the map as flat with degrees of longitude shortened to their mid-map length.
+     */
+    double meters(int v, int w) {
+        double dx = (lons[v] - lons[w]) * lonScale;
+        double dy = lats[v] - lats[w];
+        return Math.sqrt(dx * dx + dy * dy) * METERS_PER_DEGREE;
+    }
+
+    /**
+     * Compass bearing in degrees, clockwise from north in [0, 360), of the straight line from
+     * the vertex with dense index v to w.
+     */
+    double bearing(int v, int w) {
+        double degrees = Math.toDegrees(Math.atan2((lons[w] - lons[v]) * lonScale,
+                lats[w] - lats[v]));
+        return degrees < 0 ? degrees + 360 : degrees;
+    }
+
+    /** Weight under metric of edge slot e, which leaves the vertex with dense index v. */
+    double weight(Metric metric, int v, int e) {
+        if (metric == Metric.DISTANCE) {
+            return distance(v, targets[e]);
+        }
+        return meters(v, targets[e]) * 3.6 / streetSpeeds[edgeStreets[e]];
+    }
+
+    /**
+     * A lower bound under metric on the weight of any route between the vertices with dense
+     * indices v and w. It is consistent: it never drops by more than the weight of an edge.
+     */
+    double estimate(Metric metric, int v, int w) {
+        if (metric == Metric.DISTANCE) {
+            return distance(v, w);
+        }
+        return meters(v, w) * 3.6 / maxSpeed;
+    }
+
+    /**
+     * Edge slot leading from the vertex with dense index v to w, or -1 if they are not
+     * adjacent. Rows are sorted by target, so this is a binary search.
+     */
+    int edgeSlot(int v, int w) {
+        int e = Arrays.binarySearch(targets, offsets[v], offsets[v + 1], w);
+        return e < 0 ? -1 : e;
+    }
+
+    /** Street index of edge slot e. */
+    int edgeStreet(int e) {
+        return edgeStreets[e];
+    }
+
+    /** Number of distinct streets, each a (name, speed limit) pair. */
+    int streetCount() {
+        return streetNames.length;
+    }
+
+    /** Name of street s, or "" if it is unnamed. */
+    String streetName(int s) {
+        return streetNames[s];
+    }
+
+    /** Speed limit of street s, in km/h. */
+    double streetSpeed(int s) {
+        return streetSpeeds[s];
+    }
+
+    /** Number of named locations, including those that are not on any road. */
+    int locationCount() {
+        return locationIds.length;
+    }
+
+    /** OSM id of the i-th named location. */
+    long locationId(int i) {
+        return locationIds[i];
+    }
+
+    /** Longitude of the i-th named location. */
+    double locationLon(int i) {
+        return locationLons[i];
+    }
+
+    /** Latitude of the i-th named location. */
+    double locationLat(int i) {
+        return locationLats[i];
+    }
+
+    /** Full name of the i-th named location. */
+    String locationName(int i) {
+        return locationNames[i];
+    }
+
+    /**
+     * Returns the positions, in file order, of the locations whose cleaned name is
+     * cleanedName, for use with the location accessors. The array must not be modified.
+     */
+    int[] locationsNamed(String cleanedName) {
+        int[] group = locationsByName.get(cleanedName);
+        return group == null ? NO_LOCATIONS : group;
+    }
+
+    /** Autocomplete index over the names of the locations. */
+    PrefixIndex prefixIndex() {
+        return prefixIndex;
+    }
+
+    private long[] toIds(int[] indices) {
+        long[] result = new long[indices.length];
+        for (int i = 0; i < indices.length; i += 1) {
+            result[i] = ids[indices[i]];
+        }
+        return result;
+    }
+
+    private int checkedIndex(long v) {
+        int i = index(v);
+        if (i < 0) {
+            throw new IllegalArgumentException("No vertex with id " + v + " in the graph.");
+        }
+        return i;
+    }
+
+    /**
+     * Iterates over the OSM ids of a range of vertices, either the indices [from, to) themselves
+     * or, if slots is non-null, the indices stored in slots[from..to).
+     */
+    private class IdIterator implements Iterator<Long> {
+        private final int[] slots;
+        private final int to;
+        private int next;
+
+        IdIterator(int[] slots, int from, int to) {
+            this.slots = slots;
+            this.next = from;
+            this.to = to;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < to;
+        }
+
+        @Override
+        public Long next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int i = slots == null ? next : slots[next];
+            next += 1;
+            return ids[i];
+        }
     }
 }
@@ -0,0 +1,206 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads and writes a compact binary image of a built GraphDB, so that the server only has to
+ * parse the OSM XML once. A snapshot is loaded by memory-mapping the file and bulk-copying each
+ * section into its primitive array, so startup costs roughly one pass over the file's pages.
+ *
+ * Layout (big-endian):
+ * <pre>
+ *   int    MAGIC, int VERSION
+ *   long   length and last-modified time of the OSM file the snapshot was built from
+ *   int    n (vertices), int m (edge slots), int k (locations), int s (streets)
+ *   long[n] ids, double[n] lons, double[n] lats, int[n + 1] offsets, int[m] targets,
+ *   int[m] edge streets
+ *   long[k] location ids, double[k] location lons, double[k] location lats
+ *   strings: int[k + 1] byte offsets into the UTF-8 bytes of the location names that follow
+ *   double[s] street speeds, strings: the street names
+ * </pre>
+ */
+class GraphSnapshot {
+    private static final int MAGIC = 0x424d4753;
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 2 * 4 + 2 * 8 + 4 * 4;
+
+    /** Returns the path of the snapshot that caches the graph of the OSM file at osmPath. */
+    static String snapshotPath(String osmPath) {
+        return osmPath + ".snapshot";
+    }
+
+    /**
+     * Returns true if the snapshot file exists and was built from the current version of the
+     * given OSM file.
+     */
+    static boolean isFresh(File snapshot, File source) {
+        if (!snapshot.isFile()) {
+            return false;
+        }
+        try (RandomAccessFile in = new RandomAccessFile(snapshot, "r")) {
+            if (in.length() < HEADER_BYTES || in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return false;
+            }
+            return in.readLong() == source.length() && in.readLong() == source.lastModified();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Writes g to the file snapshot, recording source as the OSM file it was built from. */
+    static void write(GraphDB g, File source, File snapshot) throws IOException {
+        File tmp = new File(snapshot.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            int n = g.size();
+            int m = n == 0 ? 0 : g.edgeEnd(n - 1);
+            int k = g.locationCount();
+            int streets = g.streetCount();
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(source.length());
+            out.writeLong(source.lastModified());
+            out.writeInt(n);
+            out.writeInt(m);
+            out.writeInt(k);
+            out.writeInt(streets);
+            for (int v = 0; v < n; v += 1) {
+                out.writeLong(g.id(v));
+            }
+            for (int v = 0; v < n; v += 1) {
+                out.writeDouble(g.lonAt(v));
+            }
+            for (int v = 0; v < n; v += 1) {
+                out.writeDouble(g.latAt(v));
+            }
+            for (int v = 0; v < n; v += 1) {
+                out.writeInt(g.edgeStart(v));
+            }
+            out.writeInt(m);
+            for (int e = 0; e < m; e += 1) {
+                out.writeInt(g.edgeTarget(e));
+            }
+            for (int e = 0; e < m; e += 1) {
+                out.writeInt(g.edgeStreet(e));
+            }
+            for (int i = 0; i < k; i += 1) {
+                out.writeLong(g.locationId(i));
+            }
+            for (int i = 0; i < k; i += 1) {
+                out.writeDouble(g.locationLon(i));
+            }
+            for (int i = 0; i < k; i += 1) {
+                out.writeDouble(g.locationLat(i));
+            }
+            String[] names = new String[k];
+            for (int i = 0; i < k; i += 1) {
+                names[i] = g.locationName(i);
+            }
+            writeStrings(out, names);
+            String[] streetNames = new String[streets];
+            for (int i = 0; i < streets; i += 1) {
+                out.writeDouble(g.streetSpeed(i));
+                streetNames[i] = g.streetName(i);
+            }
+            writeStrings(out, streetNames);
+        }
+        if (!tmp.renameTo(snapshot)) {
+            snapshot.delete();
+            if (!tmp.renameTo(snapshot)) {
+                throw new IOException("Could not move " + tmp + " to " + snapshot);
+            }
+        }
+    }
+
+    /** Loads the snapshot file into g. */
+    static void read(File snapshot, GraphDB g) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(snapshot, "r");
+             FileChannel channel = file.getChannel()) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                throw new IOException(snapshot + " is not a graph snapshot of version " + VERSION);
+            }
+            buf.getLong();
+            buf.getLong();
+            int n = buf.getInt();
+            int m = buf.getInt();
+            int k = buf.getInt();
+            int streets = buf.getInt();
+
+            long[] ids = new long[n];
+            double[] lons = new double[n];
+            double[] lats = new double[n];
+            int[] offsets = new int[n + 1];
+            int[] targets = new int[m];
+            int[] edgeStreets = new int[m];
+            readLongs(buf, ids);
+            readDoubles(buf, lons);
+            readDoubles(buf, lats);
+            readInts(buf, offsets);
+            readInts(buf, targets);
+            readInts(buf, edgeStreets);
+            g.setVertices(ids, lons, lats, offsets, targets, edgeStreets);
+
+            long[] locationIds = new long[k];
+            double[] locationLons = new double[k];
+            double[] locationLats = new double[k];
+            readLongs(buf, locationIds);
+            readDoubles(buf, locationLons);
+            readDoubles(buf, locationLats);
+            g.setLocations(locationIds, locationLons, locationLats, readStrings(buf, k));
+
+            double[] streetSpeeds = new double[streets];
+            readDoubles(buf, streetSpeeds);
+            g.setStreets(readStrings(buf, streets), streetSpeeds);
+        }
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+        byte[][] encoded = new byte[strings.length][];
+        int offset = 0;
+        out.writeInt(offset);
+        for (int i = 0; i < strings.length; i += 1) {
+            encoded[i] = strings[i].getBytes(StandardCharsets.UTF_8);
+            offset += encoded[i].length;
+            out.writeInt(offset);
+        }
+        for (byte[] bytes : encoded) {
+            out.write(bytes);
+        }
+    }
+
+    private static String[] readStrings(ByteBuffer buf, int count) {
+        int[] offsets = new int[count + 1];
+        readInts(buf, offsets);
+        byte[] bytes = new byte[offsets[count]];
+        buf.get(bytes);
+        String[] strings = new String[count];
+        for (int i = 0; i < count; i += 1) {
+            strings[i] = new String(bytes, offsets[i], offsets[i + 1] - offsets[i],
+                    StandardCharsets.UTF_8);
+        }
+        return strings;
+    }
+
+    private static void readLongs(ByteBuffer buf, long[] dst) {
+        buf.asLongBuffer().get(dst);
+        buf.position(buf.position() + dst.length * Long.BYTES);
+    }
+
+    private static void readDoubles(ByteBuffer buf, double[] dst) {
+        buf.asDoubleBuffer().get(dst);
+        buf.position(buf.position() + dst.length * Double.BYTES);
+    }
+
+    private static void readInts(ByteBuffer buf, int[] dst) {
+        buf.asIntBuffer().get(dst);
+        buf.position(buf.position() + dst.length * Integer.BYTES);
+    }
+}
@@ -0,0 +1,104 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative longs (latencies in nanoseconds, sizes in bytes,
+ * vertex counts) with the bucket layout of HdrHistogram: values below SUB_BUCKETS are counted
+ * exactly, and above that every power-of-two range is split into SUB_BUCKETS / 2 equal
+ * buckets, so any recorded value is known to within 1 / 64 of itself, about 1.6%. All of
+ * a long's range fits in a few thousand buckets.
+ *
+ * Recording is one array increment plus three striped adders and never blocks; readers see
+ * a slightly moving picture while recording goes on, which is fine for monitoring.
+ */
+class Histogram {
+    private static final int SUB_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final int BUCKETS = (Long.SIZE - SUB_BITS + 1) * HALF + HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /** Records one occurrence of value; negative values are recorded as 0. */
+    void record(long value) {
+        long v = Math.max(0, value);
+        counts.incrementAndGet(bucket(v));
+        count.increment();
+        sum.add(v);
+        max.accumulate(v);
+    }
+
+    /**
+     * Bucket of v. The shift m is 0 below SUB_BUCKETS and otherwise leaves v >>> m in
+     * [HALF, SUB_BUCKETS), so consecutive ranges get consecutive buckets.
+     */
+    private static int bucket(long v) {
+        int m = Long.SIZE - Long.numberOfLeadingZeros(v | (SUB_BUCKETS - 1)) - SUB_BITS;
+        return m * HALF + (int) (v >>> m);
+    }
+
+    /** Smallest value that falls in bucket i. */
+    private static long lowest(int i) {
+        if (i < SUB_BUCKETS) {
+            return i;
+        }
+        int m = (i >> (SUB_BITS - 1)) - 1;
+        return (long) (i - m * HALF) << m;
+    }
+
+    /** Largest value that falls in bucket i. */
+    private static long highest(int i) {
+        return i + 1 < BUCKETS ? lowest(i + 1) - 1 : Long.MAX_VALUE;
+    }
+
+    /** Number of values recorded. */
+    long count() {
+        return count.sum();
+    }
+
+    /** Sum of the values recorded. */
+    long sum() {
+        return sum.sum();
+    }
+
+    /** Largest value recorded, or 0 if there is none. */
+    long max() {
+        return max.get();
+    }
+
+    /** Mean of the values recorded, or 0 if there is none. */
+    double mean() {
+        long n = count();
+        return n == 0 ? 0 : (double) sum() / n;
+    }
+
+    /**
+     * Returns the value at quantile q (e.g. 0.99) of the values recorded so far: the upper end
+     * of the bucket holding it, capped at the largest value recorded. Returns 0 if nothing has
+     * been recorded.
+     */
+    long percentile(double q) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i += 1) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i += 1) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highest(i), max());
+            }
+        }
+        return max();
+    }
+}
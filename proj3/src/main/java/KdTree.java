@@ -0,0 +1,266 @@
+/**
+ * A static 2-d tree over the vertices of a GraphDB, used to snap query points to the road
+ * network. Distances are Euclidean in (lon, lat), the same metric as GraphDB.distance.
+ *
+ * The tree is implicit: the vertices are permuted so that, within any subrange [lo, hi) of
+ * the arrays, the median element mid = (lo + hi) / 2 splits the range on the x (longitude)
+ * axis at even depths and on the y (latitude) axis at odd depths. Coordinates are copied into
+ * that order so that a search walks contiguous memory. Nearest-neighbor queries allocate
+ * nothing and may run concurrently.
+ */
+class KdTree {
+    /** Vertex indices in tree order. */
+    private final int[] vertex;
+    private final double[] xs;
+    private final double[] ys;
+
+    /**
+     * Builds a tree over the points (lons[i], lats[i]) for i in [0, lons.length).
+     * The arrays are only read during construction.
+     */
+    KdTree(double[] lons, double[] lats) {
+        int n = lons.length;
+        vertex = new int[n];
+        for (int i = 0; i < n; i += 1) {
+            vertex[i] = i;
+        }
+        build(lons, lats, 0, n, 0);
+        xs = new double[n];
+        ys = new double[n];
+        for (int i = 0; i < n; i += 1) {
+            xs[i] = lons[vertex[i]];
+            ys[i] = lats[vertex[i]];
+        }
+    }
+
+    /** Number of points in the tree. */
+    int size() {
+        return vertex.length;
+    }
+
+    /** Returns the index of the point closest to (x, y), or -1 if the tree is empty. */
+    int nearest(double x, double y) {
+        if (vertex.length == 0) {
+            return -1;
+        }
+        return vertex[nearest(x, y, 0, vertex.length, 0, vertex.length >>> 1)];
+    }
+
+    /**
+     * Returns the indices of the k points closest to (x, y), closest first. Fewer are returned
+     * if the tree has fewer than k points.
+     */
+    int[] nearest(double x, double y, int k) {
+        k = Math.min(k, vertex.length);
+        if (k <= 0) {
+            return new int[0];
+        }
+        /* A max-heap on distance of the best k candidates seen so far. */
+        int[] heap = new int[k];
+        double[] heapDist = new double[k];
+        int size = nearest(x, y, 0, vertex.length, 0, heap, heapDist, 0);
+
+        /* Pop the heap from the back to get the candidates closest first. */
+        int[] result = new int[size];
+        for (int i = size - 1; i >= 0; i -= 1) {
+            result[i] = vertex[heap[0]];
+            heap[0] = heap[i];
+            heapDist[0] = heapDist[i];
+            siftDown(heap, heapDist, 0, i);
+        }
+        return result;
+    }
+
+    /** Returns the indices of all points within distance r of (x, y), closest first. */
+    int[] within(double x, double y, double r) {
+        int[] found = new int[16];
+        int count = within(x, y, r * r, 0, vertex.length, 0, found, 0);
+        if (count > found.length) {
+            found = new int[count];
+            within(x, y, r * r, 0, vertex.length, 0, found, 0);
+        }
+        double[] dist = new double[count];
+        for (int i = 0; i < count; i += 1) {
+            dist[i] = distance2(found[i], x, y);
+        }
+        /* Insertion sort keeps small result sets cheap; radius queries are meant to be small. */
+        for (int i = 1; i < count; i += 1) {
+            int p = found[i];
+            double d = dist[i];
+            int j = i - 1;
+            while (j >= 0 && dist[j] > d) {
+                found[j + 1] = found[j];
+                dist[j + 1] = dist[j];
+                j -= 1;
+            }
+            found[j + 1] = p;
+            dist[j + 1] = d;
+        }
+        int[] result = new int[count];
+        for (int i = 0; i < count; i += 1) {
+            result[i] = vertex[found[i]];
+        }
+        return result;
+    }
+
+    private void build(double[] lons, double[] lats, int lo, int hi, int depth) {
+        if (hi - lo <= 1) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        select(depth % 2 == 0 ? lons : lats, lo, hi - 1, mid);
+        build(lons, lats, lo, mid, depth + 1);
+        build(lons, lats, mid + 1, hi, depth + 1);
+    }
+
+    /** Rearranges vertex[lo..hi] so that vertex[k] holds the element of rank k by key. */
+    private void select(double[] key, int lo, int hi, int k) {
+        while (hi > lo) {
+            double pivot = key[vertex[(lo + hi) >>> 1]];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (key[vertex[i]] < pivot) {
+                    i += 1;
+                }
+                while (key[vertex[j]] > pivot) {
+                    j -= 1;
+                }
+                if (i <= j) {
+                    int t = vertex[i];
+                    vertex[i] = vertex[j];
+                    vertex[j] = t;
+                    i += 1;
+                    j -= 1;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private double distance2(int p, double x, double y) {
+        double dx = xs[p] - x;
+        double dy = ys[p] - y;
+        return dx * dx + dy * dy;
+    }
+
+    /** Returns the tree position of the point closest to (x, y) among best and [lo, hi). */
+    private int nearest(double x, double y, int lo, int hi, int depth, int best) {
+        if (lo >= hi) {
+            return best;
+        }
+        int mid = (lo + hi) >>> 1;
+        if (distance2(mid, x, y) < distance2(best, x, y)) {
+            best = mid;
+        }
+        double diff = depth % 2 == 0 ? x - xs[mid] : y - ys[mid];
+        if (diff < 0) {
+            best = nearest(x, y, lo, mid, depth + 1, best);
+            if (diff * diff < distance2(best, x, y)) {
+                best = nearest(x, y, mid + 1, hi, depth + 1, best);
+            }
+        } else {
+            best = nearest(x, y, mid + 1, hi, depth + 1, best);
+            if (diff * diff < distance2(best, x, y)) {
+                best = nearest(x, y, lo, mid, depth + 1, best);
+            }
+        }
+        return best;
+    }
+
+    /** k-nearest search; the heap holds size tree positions. Returns the new heap size. */
+    private int nearest(double x, double y, int lo, int hi, int depth,
+                        int[] heap, double[] heapDist, int size) {
+        if (lo >= hi) {
+            return size;
+        }
+        int mid = (lo + hi) >>> 1;
+        double d = distance2(mid, x, y);
+        if (size < heap.length) {
+            heap[size] = mid;
+            heapDist[size] = d;
+            siftUp(heap, heapDist, size);
+            size += 1;
+        } else if (d < heapDist[0]) {
+            heap[0] = mid;
+            heapDist[0] = d;
+            siftDown(heap, heapDist, 0, size);
+        }
+        double diff = depth % 2 == 0 ? x - xs[mid] : y - ys[mid];
+        int nearLo = diff < 0 ? lo : mid + 1;
+        int nearHi = diff < 0 ? mid : hi;
+        int farLo = diff < 0 ? mid + 1 : lo;
+        int farHi = diff < 0 ? hi : mid;
+        size = nearest(x, y, nearLo, nearHi, depth + 1, heap, heapDist, size);
+        if (size < heap.length || diff * diff < heapDist[0]) {
+            size = nearest(x, y, farLo, farHi, depth + 1, heap, heapDist, size);
+        }
+        return size;
+    }
+
+    /**
+     * Radius search; records the tree positions of matching points in found while it has room.
+     * Returns the total number of matches, which may exceed found.length.
+     */
+    private int within(double x, double y, double r2, int lo, int hi, int depth,
+                       int[] found, int count) {
+        if (lo >= hi) {
+            return count;
+        }
+        int mid = (lo + hi) >>> 1;
+        if (distance2(mid, x, y) <= r2) {
+            if (count < found.length) {
+                found[count] = mid;
+            }
+            count += 1;
+        }
+        double diff = depth % 2 == 0 ? x - xs[mid] : y - ys[mid];
+        if (diff < 0 || diff * diff <= r2) {
+            count = within(x, y, r2, lo, mid, depth + 1, found, count);
+        }
+        if (diff >= 0 || diff * diff <= r2) {
+            count = within(x, y, r2, mid + 1, hi, depth + 1, found, count);
+        }
+        return count;
+    }
+
+    private static void siftUp(int[] heap, double[] dist, int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (dist[parent] >= dist[i]) {
+                return;
+            }
+            swap(heap, dist, i, parent);
+            i = parent;
+        }
+    }
+
+    private static void siftDown(int[] heap, double[] dist, int i, int size) {
+        while (2 * i + 1 < size) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && dist[child + 1] > dist[child]) {
+                child += 1;
+            }
+            if (dist[i] >= dist[child]) {
+                return;
+            }
+            swap(heap, dist, i, child);
+            i = child;
+        }
+    }
+
+    private static void swap(int[] heap, double[] dist, int i, int j) {
+        int t = heap[i];
+        heap[i] = heap[j];
+        heap[j] = t;
+        double d = dist[i];
+        dist[i] = dist[j];
+        dist[j] = d;
+    }
+}
@@ -0,0 +1,219 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * A thread-safe cache bounded by the total weight (e.g. bytes) of its values, evicting the
+ * least recently used entries first. Keys are spread over independently locked segments, each
+ * an access-ordered LinkedHashMap, so concurrent lookups of different keys rarely contend. The
+ * budget is shared by all segments: when it is exceeded, the entry evicted is the eldest of
+ * whichever segment's eldest entry was used longest ago, so one value may take up to the whole
+ * budget however many segments there are. Hits, misses and evictions are counted for
+ * monitoring.
+ *
+ * @param <K> Key type.
+ * @param <V> Value type.
+ */
+class LruCache<K, V> {
+    private final Segment<K, V>[] segments;
+    private final ToLongFunction<V> weigher;
+    private final long maxWeight;
+    /** Summed weight of all segments; changed only while holding the segment changed. */
+    private final AtomicLong weight = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxWeight Budget for the summed weight of all cached values. A value heavier
+     *                  than this on its own is never cached.
+     * @param concurrency Number of segments; a power of two no smaller than the expected
+     *                    number of threads works well.
+     * @param weigher Weight of a value, e.g. its size in bytes.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    LruCache(long maxWeight, int concurrency, ToLongFunction<V> weigher) {
+        int n = Integer.highestOneBit(Math.max(1, concurrency) * 2 - 1);
+        this.segments = new Segment[n];
+        for (int i = 0; i < n; i += 1) {
+            segments[i] = new Segment<>();
+        }
+        this.weigher = weigher;
+        this.maxWeight = maxWeight;
+    }
+
+    private Segment<K, V> segmentFor(Object key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return segments[h & (segments.length - 1)];
+    }
+
+    /** Returns the value cached for key, or null if there is none. */
+    V get(K key) {
+        Segment<K, V> s = segmentFor(key);
+        Node<V> node;
+        synchronized (s) {
+            node = s.map.get(key);
+            if (node != null) {
+                node.used = System.nanoTime();
+            }
+        }
+        if (node == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return node.value;
+    }
+
+    /**
+     * Returns the value cached for key, computing and caching it with loader on a miss. The
+     * loader runs without holding any lock, so concurrent misses on one key may each load it.
+     * Null results are returned but not cached.
+     */
+    V get(K key, Function<? super K, ? extends V> loader) {
+        V value = get(key);
+        if (value == null) {
+            value = loader.apply(key);
+            if (value != null) {
+                put(key, value);
+            }
+        }
+        return value;
+    }
+
+    /** Returns true if key is cached, without counting a hit or miss or refreshing it. */
+    boolean contains(K key) {
+        Segment<K, V> s = segmentFor(key);
+        synchronized (s) {
+            return s.map.containsKey(key);
+        }
+    }
+
+    /** Caches value under key, evicting least recently used entries to stay within budget. */
+    void put(K key, V value) {
+        long w = weigher.applyAsLong(value);
+        if (w > maxWeight) {
+            return;
+        }
+        Segment<K, V> s = segmentFor(key);
+        synchronized (s) {
+            Node<V> old = s.map.put(key, new Node<>(value, w));
+            long delta = old == null ? w : w - old.weight;
+            s.weight += delta;
+            weight.addAndGet(delta);
+        }
+        evict(key);
+    }
+
+    /**
+     * Evicts least recently used entries other than keep until the cache is within budget.
+     * Segments are locked one at a time, never two at once, so this cannot deadlock with
+     * another put; concurrent puts may both evict, which only leaves the cache a little
+     * lighter than needed.
+     */
+    private void evict(K keep) {
+        while (weight.get() > maxWeight) {
+            Segment<K, V> victim = null;
+            long oldest = Long.MAX_VALUE;
+            for (Segment<K, V> s : segments) {
+                synchronized (s) {
+                    Map.Entry<K, Node<V>> e = s.eldest();
+                    if (e != null && !e.getKey().equals(keep)
+                            && (victim == null || e.getValue().used - oldest < 0)) {
+                        victim = s;
+                        oldest = e.getValue().used;
+                    }
+                }
+            }
+            if (victim == null) {
+                return;
+            }
+            synchronized (victim) {
+                Map.Entry<K, Node<V>> e = victim.eldest();
+                if (e != null && !e.getKey().equals(keep)) {
+                    victim.map.remove(e.getKey());
+                    victim.weight -= e.getValue().weight;
+                    weight.addAndGet(-e.getValue().weight);
+                    evictions.increment();
+                }
+            }
+        }
+    }
+
+    /** Removes every entry. */
+    void clear() {
+        for (Segment<K, V> s : segments) {
+            synchronized (s) {
+                s.map.clear();
+                weight.addAndGet(-s.weight);
+                s.weight = 0;
+            }
+        }
+    }
+
+    /** Number of cached entries. */
+    int size() {
+        int size = 0;
+        for (Segment<K, V> s : segments) {
+            synchronized (s) {
+                size += s.map.size();
+            }
+        }
+        return size;
+    }
+
+    /** Summed weight of the cached values. */
+    long weight() {
+        return weight.get();
+    }
+
+    long maxWeight() {
+        return maxWeight;
+    }
+
+    /** Number of independently locked segments. */
+    int segments() {
+        return segments.length;
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    private static class Segment<K, V> {
+        private final LinkedHashMap<K, Node<V>> map = new LinkedHashMap<>(16, 0.75f, true);
+        private long weight;
+
+        /** The least recently used entry, or null if the segment is empty. */
+        Map.Entry<K, Node<V>> eldest() {
+            Iterator<Map.Entry<K, Node<V>>> it = map.entrySet().iterator();
+            return it.hasNext() ? it.next() : null;
+        }
+    }
+
+    /** A cached value with its weight and the System.nanoTime() it was last put or hit. */
+    private static class Node<V> {
+        private final V value;
+        private final long weight;
+        private long used = System.nanoTime();
+
+        Node(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
@@ -2,21 +2,34 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.BasicStroke;
 import java.awt.Color;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.awt.image.BufferedImage;
 import javax.imageio.ImageIO;
+import javax.imageio.stream.MemoryCacheImageInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 
 /* Maven is used to pull in these dependencies. */
 import com.google.gson.Gson;
+import spark.HaltException;
+import spark.Route;
 
 import static spark.Spark.*;
 
@@ -40,17 +53,49 @@ public class MapServer {
     public static final int TILE_SIZE = 256;
     /** HTTP failed response. */
     private static final int HALT_RESPONSE = 403;
+    /** HTTP response for conditional requests whose ETag still matches. */
+    private static final int NOT_MODIFIED_RESPONSE = 304;
+    /** HTTP response for requests shed because their class of work is saturated. */
+    private static final int BUSY_RESPONSE = 503;
     /** Route stroke information: typically roads are not more than 5px wide. */
     public static final float ROUTE_STROKE_WIDTH_PX = 5.0f;
     /** Route stroke information: Cyan with half transparency. */
     public static final Color ROUTE_STROKE_COLOR = new Color(108, 181, 230, 200);
     /** The tile images are in the IMG_ROOT folder. */
     private static final String IMG_ROOT = "img/";
+    /**
+     * The tile archive built from IMG_ROOT by TileArchive's packing tool. If it exists, tiles
+     * are read from it rather than from IMG_ROOT. Set with the system property
+     * bearmaps.tileArchive.
+     */
+    private static final String TILE_ARCHIVE_PATH =
+            System.getProperty("bearmaps.tileArchive", "tiles.bin");
     /**
      * The OSM XML file path. Downloaded from <a href="http://download.bbbike.org/osm/">here</a>
      * using custom region selection.
      **/
     private static final String OSM_DB_PATH = "berkeley.osm";
+    /**
+     * Set the system property bearmaps.ch (e.g. -Dbearmaps.ch=true) to route with contraction
+     * hierarchies, one by length and one by travel time. They are loaded from OSM_DB_PATH +
+     * ".ch" and ".time.ch", and built and saved there if missing.
+     */
+    private static final boolean USE_CONTRACTION_HIERARCHY = Boolean.getBoolean("bearmaps.ch");
+    /**
+     * Memory budget, in megabytes, for decoded tile images kept in memory between requests.
+     * Set with the system property bearmaps.tileCacheMB.
+     */
+    private static final long TILE_CACHE_MB = Long.getLong("bearmaps.tileCacheMB", 256);
+    /**
+     * Memory budget, in megabytes, for finished raster images kept in memory between
+     * requests. Set with the system property bearmaps.rasterCacheMB.
+     */
+    private static final long RASTER_CACHE_MB = Long.getLong("bearmaps.rasterCacheMB", 64);
+    /**
+     * Size of the web server's request thread pool; Spark's default if unset. Set with the
+     * system property bearmaps.serverThreads.
+     */
+    private static final Integer SERVER_THREADS = Integer.getInteger("bearmaps.serverThreads");
     /**
      * Each raster request to the server will have the following parameters
      * as keys in the params map accessible by,
@@ -58,6 +103,9 @@ public class MapServer {
      * ullat -> upper left corner latitude,<br> ullon -> upper left corner longitude, <br>
      * lrlat -> lower right corner latitude,<br> lrlon -> lower right corner longitude <br>
      * w -> user viewport window width in pixels,<br> h -> user viewport height in pixels.
+     * Optionally, format=png (the default) or format=jpeg picks the image format, and
+     * binary=true leaves the image out of the response and gives its image_url on /raster.png
+     * or /raster.jpeg instead, which serve it as plain bytes.
      **/
     private static final String[] REQUIRED_RASTER_REQUEST_PARAMS = {"ullat", "ullon", "lrlat",
         "lrlon", "w", "h"};
@@ -65,10 +113,18 @@ public class MapServer {
      * Each route request to the server will have the following parameters
      * as keys in the params map.<br>
      * start_lat -> start point latitude,<br> start_lon -> start point longitude,<br>
-     * end_lat -> end point latitude, <br>end_lon -> end point longitude.
+     * end_lat -> end point latitude, <br>end_lon -> end point longitude.<br>
+     * Optionally, metric=time asks for the fastest route instead of the shortest; /routes
+     * takes it too.
      **/
     private static final String[] REQUIRED_ROUTE_REQUEST_PARAMS = {"start_lat", "start_lon",
         "end_lat", "end_lon"};
+    /**
+     * A batch route request has the parameters sources and targets, each a list of points
+     * written "lon,lat;lon,lat;...", and optionally paths=true to get the routes as well as
+     * their lengths. It may ask for at most MAX_ROUTE_MATRIX_CELLS source-target pairs.
+     */
+    private static final int MAX_ROUTE_MATRIX_CELLS = 10000;
 
     /**
      * The result of rastering must be a map containing all of the
@@ -77,9 +133,93 @@ public class MapServer {
     private static final String[] REQUIRED_RASTER_RESULT_PARAMS = {"render_grid", "raster_ul_lon",
         "raster_ul_lat", "raster_lr_lon", "raster_lr_lat", "depth", "query_success"};
 
+    /** Decoded tiles by image path, weighted by their size in bytes. */
+    private static final LruCache<String, BufferedImage> TILE_CACHE = new LruCache<>(
+            TILE_CACHE_MB << 20, Runtime.getRuntime().availableProcessors(),
+            img -> (long) img.getWidth() * img.getHeight() * 4);
+
+    private static final int RASTER_CACHE_SEGMENTS = 4;
+    /**
+     * Finished raster images (the PNG or JPEG bytes), keyed by rasterKey. Queries whose boxes
+     * resolve to the same tiles, route and format share one entry, so panning back and forth
+     * serves repeats without compositing or encoding anything. Entries for routes that were
+     * replaced are never asked for again and age out. Weighted by their length in bytes.
+     * Entries are megabytes each and looked up once per request, so a few segments,
+     * RASTER_CACHE_SEGMENTS, are plenty and the count does not grow with the number of
+     * processors.
+     */
+    private static final LruCache<String, byte[]> RASTER_CACHE =
+            newRasterCache(RASTER_CACHE_MB << 20);
+
+    /**
+     * Deflate level of raster PNGs, from 0 (fastest) to 9 (smallest); 1 trades a somewhat
+     * larger image for a much cheaper encode. Set with the system property bearmaps.pngLevel.
+     */
+    private static final int PNG_LEVEL = Integer.getInteger("bearmaps.pngLevel", 1);
+    /**
+     * Quality of raster JPEGs, from 0 to 1. Set with the system property
+     * bearmaps.jpegQuality.
+     */
+    private static final float JPEG_QUALITY =
+            Float.parseFloat(System.getProperty("bearmaps.jpegQuality", "0.8"));
+    /**
+     * Most tiles around each rastered viewport to load into TILE_CACHE in the background, and
+     * the number of low-priority threads loading them; 0 tiles turns prefetching off. Set
+     * with the system properties bearmaps.prefetchTiles and bearmaps.prefetchThreads.
+     */
+    private static final int PREFETCH_TILES = Integer.getInteger("bearmaps.prefetchTiles", 64);
+    private static final int PREFETCH_THREADS = Integer.getInteger("bearmaps.prefetchThreads", 1);
+    /** Encodes raster images, reusing each thread's writers and buffer. */
+    private static final RasterEncoder ENCODER = new RasterEncoder(PNG_LEVEL, JPEG_QUALITY);
+
+    /**
+     * Cache-Control of raster responses: they depend on the session's route, so only the
+     * browser may keep them, and it must revalidate them (with their ETag) before reuse.
+     */
+    private static final String RASTER_CACHE_CONTROL = "private, no-cache";
+    /**
+     * Cache-Control of search responses, which only change when the server restarts with
+     * new map data: any cache may reuse them for five minutes, then revalidate.
+     */
+    private static final String SEARCH_CACHE_CONTROL = "public, max-age=300";
+    /** Distinguishes this run of the server in ETags. */
+    private static final String ETAG_EPOCH = Long.toString(System.currentTimeMillis(), 36);
+
+    /**
+     * Admission control per class of work, so that a burst of one class cannot take every
+     * server thread: raster requests block on tile reads and PNG encoding, routing requests
+     * on graph searches, and search requests should stay fast regardless. Each class's limits
+     * are set with the system properties bearmaps.CLASS.concurrency, bearmaps.CLASS.queue and
+     * bearmaps.CLASS.waitMillis; requests beyond them are answered with BUSY_RESPONSE.
+     */
+    private static final Bulkhead RASTER_BULKHEAD = bulkhead("raster",
+            Runtime.getRuntime().availableProcessors(),
+            Runtime.getRuntime().availableProcessors() * 4, 2000);
+    private static final Bulkhead ROUTING_BULKHEAD = bulkhead("routing",
+            Runtime.getRuntime().availableProcessors(),
+            Runtime.getRuntime().availableProcessors() * 4, 2000);
+    private static final Bulkhead SEARCH_BULKHEAD = bulkhead("search",
+            Runtime.getRuntime().availableProcessors() * 2,
+            Runtime.getRuntime().availableProcessors() * 8, 500);
+
+    /** Session attribute holding the session's current RouteSnapshot. */
+    private static final String ROUTE_ATTRIBUTE = "route";
+
+    /** Threads that fetch, decode and draw the tiles of a raster in parallel. */
+    private static final ExecutorService TILE_POOL = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors() * 2, runnable -> {
+                Thread t = new Thread(runnable, "tile-loader");
+                t.setDaemon(true);
+                return t;
+            });
+
+    /** Latency, size, rate, cache and route search counters, reported on /metrics. */
+    private static final Metrics METRICS = new Metrics();
+
     private static Rasterer rasterer;
+    private static TileArchive tileArchive;
+    private static TilePrefetcher prefetcher;
     private static GraphDB graph;
-    private static LinkedList<Long> route = new LinkedList<>();
     /* Define any static variables here. Do not define any instance variables of MapServer. */
 
 
@@ -89,12 +229,40 @@ public class MapServer {
      * This is for testing purposes, and you may fail tests otherwise.
      **/
     public static void initialize() {
-        graph = new GraphDB(OSM_DB_PATH);
+        graph = GraphDB.open(OSM_DB_PATH);
+        if (USE_CONTRACTION_HIERARCHY) {
+            for (GraphDB.Metric metric : GraphDB.Metric.values()) {
+                graph.useHierarchy(metric,
+                        ContractionHierarchy.open(graph, OSM_DB_PATH, metric));
+            }
+        }
         rasterer = new Rasterer(IMG_ROOT);
+        tileArchive = null;
+        File archive = new File(TILE_ARCHIVE_PATH);
+        if (archive.isFile()) {
+            try {
+                tileArchive = TileArchive.open(archive);
+            } catch (IOException e) {
+                System.err.println("Reading tiles from " + IMG_ROOT + ": " + e.getMessage());
+            }
+        }
+        prefetcher = PREFETCH_TILES > 0 ? new TilePrefetcher(rasterer, TILE_CACHE,
+                MapServer::readImage, PREFETCH_TILES, PREFETCH_THREADS) : null;
+        if (prefetcher != null) {
+            METRICS.watch("tiles", prefetcher);
+        }
+        METRICS.watch("tiles", TILE_CACHE);
+        METRICS.watch("raster", RASTER_CACHE);
+        METRICS.watch("raster", RASTER_BULKHEAD);
+        METRICS.watch("routing", ROUTING_BULKHEAD);
+        METRICS.watch("search", SEARCH_BULKHEAD);
     }
 
     public static void main(String[] args) {
         initialize();
+        if (SERVER_THREADS != null) {
+            threadPool(SERVER_THREADS);
+        }
         staticFileLocation("/page");
         /* Allow for all origin requests (since this is not an authenticated server, we do not
          * care about CSRF).  */
@@ -106,57 +274,135 @@ public class MapServer {
 
         /* Define the raster endpoint for HTTP GET requests. I use anonymous functions to define
          * the request handlers. */
-        get("/raster", (req, res) -> {
+        get("/raster", timed("raster", admitted(RASTER_BULKHEAD, (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
-            /* The png image is written to the ByteArrayOutputStream */
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
             /* getMapRaster() does almost all the work for this API call */
             Map<String, Object> rasteredImgParams = rasterer.getMapRaster(params);
 
             boolean rasterSuccess = validateRasteredImgParams(rasteredImgParams);
+            Gson gson = new Gson();
+            if (!rasterSuccess) {
+                return gson.toJson(rasteredImgParams);
+            }
+            putRasterSize(rasteredImgParams);
+
+            RasterEncoder.Format format = getRequestFormat(req);
+            rasteredImgParams.put("image_type", format.mimeType());
+            boolean binary = "true".equals(req.queryParams("binary"));
+            /* The tiles, route and format determine the image and the metadata; in binary
+             * mode so does the query, which image_url repeats. A client that already has the
+             * response gets 304 before anything is drawn. */
+            RouteSnapshot route = routeOf(req);
+            String key = rasterKey(rasteredImgParams, route.version(), format);
+            conditional(req, res, binary ? "raster/binary/" + key + "/" + req.queryString()
+                    : "raster/" + key, RASTER_CACHE_CONTROL);
+            /* Past the 304, so revalidating a viewport does not queue its neighbours again;
+             * they were prefetched when it was first served. */
+            prefetchAround(rasteredImgParams);
 
-            if (rasterSuccess) {
-                writeImagesToOutputStream(rasteredImgParams, os);
-                String encodedImage = Base64.getEncoder().encodeToString(os.toByteArray());
-                rasteredImgParams.put("b64_encoded_image_data", encodedImage);
+            /* In binary mode, answer with the metadata alone and let the client fetch the
+             * image itself, as bytes, from /raster.png or /raster.jpeg with the same
+             * parameters. */
+            if (binary) {
+                rasteredImgParams.put("image_url",
+                        "/raster." + format.extension() + "?" + req.queryString());
+                return gson.toJson(rasteredImgParams);
             }
+            byte[] image = rasterImage(rasteredImgParams, route, format);
+            return withImage(gson.toJson(rasteredImgParams), image);
+        })));
 
-            /* Encode response to Json */
-            Gson gson = new Gson();
-            return gson.toJson(rasteredImgParams);
-        });
+        /* Define the raster image endpoints: the image /raster would embed, as image/png or
+         * image/jpeg. */
+        for (RasterEncoder.Format format : RasterEncoder.Format.values()) {
+            get("/raster." + format.extension(), timed("raster_" + format.extension(),
+                    admitted(RASTER_BULKHEAD, (req, res) -> {
+                        HashMap<String, Double> params =
+                                getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
+                        Map<String, Object> rasteredImgParams = rasterer.getMapRaster(params);
+                        if (!validateRasteredImgParams(rasteredImgParams)) {
+                            halt(HALT_RESPONSE, "Request failed - the box is not on the map.");
+                        }
+                        RouteSnapshot route = routeOf(req);
+                        conditional(req, res, "image/"
+                                + rasterKey(rasteredImgParams, route.version(), format),
+                                RASTER_CACHE_CONTROL);
+                        res.type(format.mimeType());
+                        /* Spark writes a byte[] body to the servlet output stream as it is. */
+                        return rasterImage(rasteredImgParams, route, format);
+                    })));
+        }
 
         /* Define the routing endpoint for HTTP GET requests. */
-        get("/route", (req, res) -> {
+        get("/route", timed("route", admitted(ROUTING_BULKHEAD, (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
-            route = Router.shortestPath(graph, params.get("start_lon"), params.get("start_lat"),
-                    params.get("end_lon"), params.get("end_lat"));
-            //route = findAndSetRoute(params);
+            RouteSnapshot route = RouteSnapshot.of(Router.shortestPath(graph,
+                    params.get("start_lon"), params.get("start_lat"),
+                    params.get("end_lon"), params.get("end_lat"), getRequestMetric(req)));
+            METRICS.recordSettled(Router.lastSettledCount());
+            req.session().attribute(ROUTE_ATTRIBUTE, route);
             return !route.isEmpty();
-        });
+        })));
+
+        /* Define the batch routing endpoint: the lengths (and optionally the routes) between
+         * every source and every target, without touching the session's route. */
+        get("/routes", timed("routes", admitted(ROUTING_BULKHEAD, (req, res) -> {
+            double[][] sources = getRequestPoints(req, "sources");
+            double[][] targets = getRequestPoints(req, "targets");
+            if ((long) sources.length * targets.length > MAX_ROUTE_MATRIX_CELLS) {
+                halt(HALT_RESPONSE, "Request failed - too many source-target pairs.");
+            }
+            boolean withPaths = "true".equals(req.queryParams("paths"));
+            return routeMatrixJson(Router.routeMatrix(graph, sources, targets, withPaths,
+                    getRequestMetric(req)));
+        })));
+
+        /* Define the API endpoint for turn-by-turn directions along the current route. */
+        get("/directions", timed("directions", admitted(ROUTING_BULKHEAD,
+            (req, res) -> directionsJson(Directions.of(graph, routeOf(req))))));
 
         /* Define the API endpoint for clearing the current route. */
-        get("/clear_route", (req, res) -> {
-            clearRoute();
+        get("/clear_route", timed("clear_route", (req, res) -> {
+            clearRoute(req);
             return true;
-        });
+        }));
 
         /* Define the API endpoint for search */
-        get("/search", (req, res) -> {
+        get("/search", timed("search", admitted(SEARCH_BULKHEAD, (req, res) -> {
             Set<String> reqParams = req.queryParams();
             String term = req.queryParams("term");
+            conditional(req, res, "search/" + reqParams.contains("full") + "/"
+                    + req.queryParams("limit") + "/" + term, SEARCH_CACHE_CONTROL);
             Gson gson = new Gson();
             /* Search for actual location data. */
             if (reqParams.contains("full")) {
-                List<Map<String, Object>> data = getLocations(term);
-                return gson.toJson(data);
+                return locationsJson(term);
+            } else if (reqParams.contains("limit")) {
+                /* Search for the most popular prefix matching strings. */
+                int limit;
+                try {
+                    limit = Integer.parseInt(req.queryParams("limit"));
+                } catch (NumberFormatException e) {
+                    halt(HALT_RESPONSE, "Incorrect parameters - provide numbers.");
+                    return null;
+                }
+                return gson.toJson(getLocationsByPrefix(term, limit));
             } else {
                 /* Search for prefix matching strings. */
                 List<String> matches = getLocationsByPrefix(term);
                 return gson.toJson(matches);
             }
+        })));
+
+        /* Define the monitoring endpoint, answered only on the loopback interface. */
+        get("/metrics", (req, res) -> {
+            if (!isLoopback(req.ip())) {
+                halt(HALT_RESPONSE, "Request failed - metrics are only served locally.");
+            }
+            res.type("application/json");
+            return METRICS.toJson();
         });
 
         /* Define map application redirect */
@@ -166,6 +412,22 @@ public class MapServer {
         });
     }
 
+    /**
+     * Returns the image format asked for by the request's optional format parameter, png
+     * (the default) or jpeg; halts the request if it is anything else.
+     */
+    private static RasterEncoder.Format getRequestFormat(spark.Request req) {
+        String name = req.queryParams("format");
+        if (name == null) {
+            return RasterEncoder.Format.PNG;
+        }
+        RasterEncoder.Format format = RasterEncoder.Format.of(name);
+        if (format == null) {
+            halt(HALT_RESPONSE, "Incorrect parameters - format must be png or jpeg.");
+        }
+        return format;
+    }
+
     /**
      * Validate & return a parameter map of the required request parameters.
      * Requires that all input parameters are doubles.
@@ -192,31 +454,144 @@ public class MapServer {
         return params;
     }
 
-    /** Writes the images corresponding to rasteredImgParams to the output stream.
+    /**
+     * Parses the request parameter name as a list of points "lon,lat;lon,lat;...".
+     * @return The points as {lon, lat} pairs.
+     */
+    private static double[][] getRequestPoints(spark.Request req, String name) {
+        String value = req.queryParams(name);
+        if (value == null || value.isEmpty()) {
+            halt(HALT_RESPONSE, "Request failed - parameters missing.");
+        }
+        String[] points = value.split(";");
+        double[][] result = new double[points.length][];
+        for (int i = 0; i < points.length; i += 1) {
+            String[] lonLat = points[i].split(",");
+            try {
+                if (lonLat.length != 2) {
+                    throw new NumberFormatException(points[i]);
+                }
+                result[i] = new double[] {Double.parseDouble(lonLat[0]),
+                    Double.parseDouble(lonLat[1])};
+            } catch (NumberFormatException e) {
+                halt(HALT_RESPONSE, "Incorrect parameters - provide lon,lat pairs.");
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the metric named by the optional request parameter metric, "distance" (the
+     * default) or "time".
+     */
+    private static GraphDB.Metric getRequestMetric(spark.Request req) {
+        String value = req.queryParams("metric");
+        if (value == null) {
+            return GraphDB.Metric.DISTANCE;
+        }
+        try {
+            return GraphDB.Metric.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            halt(HALT_RESPONSE, "Incorrect parameters - metric must be distance or time.");
+            return null;
+        }
+    }
+
+    /**
+     * Encodes maneuvers as a Json array of objects with the maneuver's turn, street, start
+     * point, length in meters, time in seconds, and the instruction as a sentence.
+     */
+    static String directionsJson(List<Directions.Maneuver> maneuvers) {
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (Directions.Maneuver m : maneuvers) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("turn", m.turn().name().toLowerCase());
+            entry.put("street", m.street());
+            entry.put("lon", m.lon());
+            entry.put("lat", m.lat());
+            entry.put("meters", m.meters());
+            entry.put("seconds", m.seconds());
+            entry.put("instruction", m.toString());
+            result.add(entry);
+        }
+        return new Gson().toJson(result);
+    }
+
+    /**
+     * Encodes a route matrix as Json: "lengths" holds one array per source with the length to
+     * each target, null where there is no route, and "paths", if present, holds the routes as
+     * arrays of node ids in the same shape.
+     */
+    static String routeMatrixJson(RouteMatrix matrix) {
+        StringBuilder json = new StringBuilder("{\"lengths\":[");
+        for (int i = 0; i < matrix.sources(); i += 1) {
+            json.append(i == 0 ? "[" : ",[");
+            for (int j = 0; j < matrix.targets(); j += 1) {
+                if (j > 0) {
+                    json.append(',');
+                }
+                double length = matrix.length(i, j);
+                if (Double.isInfinite(length)) {
+                    json.append("null");
+                } else {
+                    json.append(length);
+                }
+            }
+            json.append(']');
+        }
+        json.append(']');
+        if (matrix.hasPaths()) {
+            json.append(",\"paths\":[");
+            for (int i = 0; i < matrix.sources(); i += 1) {
+                json.append(i == 0 ? "[" : ",[");
+                for (int j = 0; j < matrix.targets(); j += 1) {
+                    json.append(j == 0 ? "[" : ",[");
+                    long[] path = matrix.path(i, j);
+                    for (int k = 0; k < path.length; k += 1) {
+                        if (k > 0) {
+                            json.append(',');
+                        }
+                        json.append(path[k]);
+                    }
+                    json.append(']');
+                }
+                json.append(']');
+            }
+            json.append(']');
+        }
+        return json.append('}').toString();
+    }
+
+    /** Draws the images corresponding to rasteredImgParams, and route, into one image.
      * In Spring 2016, students had to do this on their own, but in 2017,
      * we have made this into provided code since it was just a bit too low level.
      */
-    private static void writeImagesToOutputStream(Map<String, Object> rasteredImageParams,
-                                                  ByteArrayOutputStream os) {
+    private static BufferedImage drawRaster(Map<String, Object> rasteredImageParams,
+                                            RouteSnapshot route) {
         String[][] renderGrid = (String[][]) rasteredImageParams.get("render_grid");
         int numVertTiles = renderGrid.length;
         int numHorizTiles = renderGrid[0].length;
 
         BufferedImage img = new BufferedImage(numHorizTiles * MapServer.TILE_SIZE,
                 numVertTiles * MapServer.TILE_SIZE, BufferedImage.TYPE_INT_RGB);
-        Graphics graphic = img.getGraphics();
-        int x = 0, y = 0;
 
+        /* Fetch and draw every tile in parallel. Each task draws through its own Graphics
+         * into a disjoint TILE_SIZE square of img, so no two tasks touch the same pixels. */
+        CompletableFuture<?>[] tiles = new CompletableFuture<?>[numVertTiles * numHorizTiles];
         for (int r = 0; r < numVertTiles; r += 1) {
             for (int c = 0; c < numHorizTiles; c += 1) {
-                graphic.drawImage(getImage(renderGrid[r][c]), x, y, null);
-                x += MapServer.TILE_SIZE;
-                if (x >= img.getWidth()) {
-                    x = 0;
-                    y += MapServer.TILE_SIZE;
-                }
+                String imgPath = renderGrid[r][c];
+                int x = c * MapServer.TILE_SIZE;
+                int y = r * MapServer.TILE_SIZE;
+                tiles[r * numHorizTiles + c] = CompletableFuture.runAsync(() -> {
+                    Graphics2D tileGraphic = img.createGraphics();
+                    tileGraphic.drawImage(getImage(imgPath), x, y, null);
+                    tileGraphic.dispose();
+                }, TILE_POOL);
             }
         }
+        CompletableFuture.allOf(tiles).join();
+        Graphics graphic = img.getGraphics();
 
         /* If there is a route, draw it. */
         double ullon = (double) rasteredImageParams.get("raster_ul_lon"); //tiles.get(0).ulp;
@@ -226,60 +601,293 @@ public class MapServer {
 
         final double wdpp = (lrlon - ullon) / img.getWidth();
         final double hdpp = (ullat - lrlat) / img.getHeight();
-        if (route != null && !route.isEmpty()) {
+        if (!route.isEmpty()) {
             Graphics2D g2d = (Graphics2D) graphic;
             g2d.setColor(MapServer.ROUTE_STROKE_COLOR);
             g2d.setStroke(new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
                     BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-            route.stream().reduce((v, w) -> {
+            for (int i = 1; i < route.size(); i += 1) {
+                long v = route.id(i - 1);
+                long w = route.id(i);
                 g2d.drawLine((int) ((graph.lon(v) - ullon) * (1 / wdpp)),
                              (int) ((ullat - graph.lat(v)) * (1 / hdpp)),
                              (int) ((graph.lon(w) - ullon) * (1 / wdpp)),
                              (int) ((ullat - graph.lat(w)) * (1 / hdpp)));
-                return w;
-            });
+            }
         }
+        return img;
+    }
 
-        rasteredImageParams.put("raster_width", img.getWidth());
-        rasteredImageParams.put("raster_height", img.getHeight());
+    /** Starts loading the tiles around a successful raster result's grid, if enabled. */
+    private static void prefetchAround(Map<String, Object> rasteredImgParams) {
+        if (prefetcher == null) {
+            return;
+        }
+        String[][] grid = (String[][]) rasteredImgParams.get("render_grid");
+        String[] lastRow = grid[grid.length - 1];
+        int[] first = Rasterer.tileOf(grid[0][0]);
+        int[] last = Rasterer.tileOf(lastRow[lastRow.length - 1]);
+        if (first != null && last != null) {
+            prefetcher.prefetch(first[0], first[1], first[2], last[1], last[2]);
+        }
+    }
 
-        try {
-            ImageIO.write(img, "png", os);
-        } catch (IOException e) {
-            e.printStackTrace();
+    /** Sets raster_width and raster_height, in pixels, from the size of the render_grid. */
+    private static void putRasterSize(Map<String, Object> rasteredImgParams) {
+        String[][] grid = (String[][]) rasteredImgParams.get("render_grid");
+        rasteredImgParams.put("raster_width", grid[0].length * MapServer.TILE_SIZE);
+        rasteredImgParams.put("raster_height", grid.length * MapServer.TILE_SIZE);
+    }
+
+    /**
+     * Returns the image of a successful raster result with route drawn on it, encoded in
+     * format, from RASTER_CACHE if it is there and otherwise composited, encoded and cached.
+     * Encode times and sizes are recorded per format.
+     */
+    private static byte[] rasterImage(Map<String, Object> rasteredImgParams,
+                                      RouteSnapshot route, RasterEncoder.Format format) {
+        String key = rasterKey(rasteredImgParams, route.version(), format);
+        byte[] image = RASTER_CACHE.get(key);
+        if (image == null) {
+            BufferedImage img = drawRaster(rasteredImgParams, route);
+            long start = System.nanoTime();
+            image = ENCODER.encode(img, format);
+            METRICS.encoder(format.extension()).record(System.nanoTime() - start,
+                    image.length);
+            RASTER_CACHE.put(key, image);
         }
+        return image;
+    }
 
+    /**
+     * Adds png, Base64-encoded, to the JSON object json as b64_encoded_image_data. Base64 needs
+     * no escaping, so it is appended as is rather than passed through Gson a second time.
+     */
+    static String withImage(String json, byte[] png) {
+        String encoded = Base64.getEncoder().encodeToString(png);
+        StringBuilder sb = new StringBuilder(json.length() + encoded.length() + 32);
+        sb.append(json, 0, json.lastIndexOf('}'));
+        if (sb.length() > 1) {
+            sb.append(',');
+        }
+        return sb.append("\"b64_encoded_image_data\":\"").append(encoded).append("\"}")
+                .toString();
     }
 
     private static BufferedImage getImage(String imgPath) {
+        return TILE_CACHE.get(imgPath, MapServer::readImage);
+    }
+
+    /** Decodes the tile image at imgPath, or returns null if it cannot be read. */
+    private static BufferedImage readImage(String imgPath) {
         BufferedImage tileImg = null;
-        if (tileImg == null) {
-            try {
-                File in = new File(imgPath);
-                tileImg = ImageIO.read(in);
-            } catch (IOException | NullPointerException e) {
-                e.printStackTrace();
+        try {
+            int[] tile = tileArchive == null ? null : Rasterer.tileOf(imgPath);
+            InputStream packed = tile == null ? null
+                    : tileArchive.open(tile[0], tile[1], tile[2]);
+            if (packed != null) {
+                /* Decode straight from the mapping; ImageIO.read(InputStream) could spill the
+                 * stream to a temporary file first. */
+                return ImageIO.read(new MemoryCacheImageInputStream(packed));
             }
+            File in = new File(imgPath);
+            tileImg = ImageIO.read(in);
+        } catch (IOException | NullPointerException e) {
+            e.printStackTrace();
         }
         return tileImg;
     }
 
     /**
-     * Clear the current found route, if it exists.
+     * Wraps route so each request is timed and sized in the named endpoint's counters. A
+     * request that throws, including one stopped by halt, counts as an error.
+     */
+    private static Route timed(String name, Route route) {
+        Metrics.Endpoint endpoint = METRICS.endpoint(name);
+        return (req, res) -> {
+            long start = System.nanoTime();
+            Object body;
+            try {
+                body = route.handle(req, res);
+            } catch (HaltException e) {
+                /* halt also answers successfully, e.g. with 304 Not Modified. */
+                if (e.getStatusCode() < 400) {
+                    endpoint.record(System.nanoTime() - start, 0);
+                } else {
+                    endpoint.recordError(System.nanoTime() - start);
+                }
+                throw e;
+            } catch (Exception e) {
+                endpoint.recordError(System.nanoTime() - start);
+                throw e;
+            }
+            long size = body instanceof byte[] ? ((byte[]) body).length
+                    : body == null ? 0 : body.toString().length();
+            endpoint.record(System.nanoTime() - start, size);
+            return body;
+        };
+    }
+
+    /**
+     * Sets the ETag of the response to the one identifying key, and its Cache-Control header
+     * to cacheControl; then, if the request's If-None-Match names that ETag, stops it with
+     * 304 Not Modified before any work is done. The key must determine the response body.
+     */
+    private static void conditional(spark.Request req, spark.Response res, String key,
+                                    String cacheControl) {
+        String etag = etag(key);
+        res.header("ETag", etag);
+        res.header("Cache-Control", cacheControl);
+        if (ifNoneMatch(req.headers("If-None-Match"), etag)) {
+            halt(NOT_MODIFIED_RESPONSE);
+        }
+    }
+
+    /**
+     * A strong ETag for the response identified by key: a hash of key, prefixed with
+     * ETAG_EPOCH so that tags from before a restart, when route versions start over, never
+     * match.
+     */
+    static String etag(String key) {
+        byte[] hash;
+        try {
+            hash = MessageDigest.getInstance("SHA-256")
+                    .digest(key.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder sb = new StringBuilder("\"").append(ETAG_EPOCH).append('-');
+        for (int i = 0; i < 12; i += 1) {
+            sb.append(Character.forDigit((hash[i] >> 4) & 0xf, 16))
+                    .append(Character.forDigit(hash[i] & 0xf, 16));
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Whether an If-None-Match header, a comma-separated list of ETags or "*", names etag.
+     * Weak tags match too, as If-None-Match compares weakly.
+     */
+    static boolean ifNoneMatch(String header, String etag) {
+        if (header == null) {
+            return false;
+        }
+        for (String tag : header.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Wraps route so it only runs once bulkhead admits it. Requests it turns away are stopped
+     * with BUSY_RESPONSE and a Retry-After header.
      */
-    public static void clearRoute() {
-        route = new LinkedList<Long>();
+    private static Route admitted(Bulkhead bulkhead, Route route) {
+        return (req, res) -> {
+            if (!bulkhead.enter()) {
+                res.header("Retry-After", "1");
+                halt(BUSY_RESPONSE, "Server busy - try again shortly.");
+            }
+            try {
+                return route.handle(req, res);
+            } finally {
+                bulkhead.exit();
+            }
+        };
+    }
+
+    /** A Bulkhead for the named class of work, with the given limits unless overridden. */
+    private static Bulkhead bulkhead(String name, int concurrency, int queue, long waitMillis) {
+        return new Bulkhead(Integer.getInteger("bearmaps." + name + ".concurrency", concurrency),
+                Integer.getInteger("bearmaps." + name + ".queue", queue),
+                Long.getLong("bearmaps." + name + ".waitMillis", waitMillis));
+    }
+
+    /** Whether ip, as reported by the request, is a loopback address. */
+    static boolean isLoopback(String ip) {
+        try {
+            return ip != null && InetAddress.getByName(ip).isLoopbackAddress();
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+
+    /** The counters reported on /metrics. */
+    static Metrics metrics() {
+        return METRICS;
+    }
+
+    /** A cache of finished raster images built as RASTER_CACHE is, holding up to maxBytes. */
+    static LruCache<String, byte[]> newRasterCache(long maxBytes) {
+        return new LruCache<>(maxBytes, RASTER_CACHE_SEGMENTS, image -> image.length);
+    }
+
+    /** The cache of finished raster images, exposed for its counters. */
+    static LruCache<String, byte[]> rasterCache() {
+        return RASTER_CACHE;
+    }
+
+    /** The cache of decoded tile images, exposed for its hit, miss and eviction counters. */
+    static LruCache<String, BufferedImage> tileCache() {
+        return TILE_CACHE;
     }
 
     /**
-     * In linear time, collect all the names of OSM locations that prefix-match the query string.
+     * Clear the current found route of the requesting session, if it exists.
+     */
+    public static void clearRoute(spark.Request req) {
+        if (req.session(false) != null) {
+            req.session().attribute(ROUTE_ATTRIBUTE, RouteSnapshot.EMPTY);
+        }
+    }
+
+    /**
+     * Returns the route last found for the requesting session, or EMPTY if it has none. Each
+     * session has its own route, so concurrent users never draw each other's.
+     */
+    private static RouteSnapshot routeOf(spark.Request req) {
+        spark.Session session = req.session(false);
+        RouteSnapshot route = session == null ? null : session.attribute(ROUTE_ATTRIBUTE);
+        return route == null ? RouteSnapshot.EMPTY : route;
+    }
+
+    /**
+     * Cache key of a successful raster result: the depth and the corner tiles of its
+     * render_grid, which together determine every tile in it, plus the route version and the
+     * image format.
+     */
+    static String rasterKey(Map<String, Object> rasteredImgParams, long routeVersion,
+                            RasterEncoder.Format format) {
+        String[][] grid = (String[][]) rasteredImgParams.get("render_grid");
+        String[] lastRow = grid[grid.length - 1];
+        return rasteredImgParams.get("depth") + "/" + grid[0][0] + "/"
+                + lastRow[lastRow.length - 1] + "/" + routeVersion + "/" + format.extension();
+    }
+
+    /**
+     * Collect all the names of OSM locations that prefix-match the query string, in time
+     * proportional to the number of matches (plus a binary search).
      * @param prefix Prefix string to be searched for. Could be any case, with our without
      *               punctuation.
      * @return A <code>List</code> of the full names of locations whose cleaned name matches the
      * cleaned <code>prefix</code>.
      */
     public static List<String> getLocationsByPrefix(String prefix) {
-        return new LinkedList<>();
+        return graph.prefixIndex().all(prefix);
+    }
+
+    /**
+     * Like {@link #getLocationsByPrefix(String)}, but returns only the limit most popular
+     * matches, in time independent of how many names match.
+     */
+    public static List<String> getLocationsByPrefix(String prefix, int limit) {
+        return graph.prefixIndex().top(prefix, limit);
     }
 
     /**
@@ -295,7 +903,36 @@ public class MapServer {
      * "id" -> Number, The id of the node. <br>
      */
     public static List<Map<String, Object>> getLocations(String locationName) {
-        return new LinkedList<>();
+        List<Map<String, Object>> locations = new LinkedList<>();
+        for (int i : graph.locationsNamed(GraphDB.cleanString(locationName))) {
+            Map<String, Object> location = new HashMap<>();
+            location.put("lat", graph.locationLat(i));
+            location.put("lon", graph.locationLon(i));
+            location.put("name", graph.locationName(i));
+            location.put("id", graph.locationId(i));
+            locations.add(location);
+        }
+        return locations;
+    }
+
+    /**
+     * Returns the result of {@link #getLocations} encoded as Json, written straight from the
+     * graph's location arrays without building a map per location.
+     */
+    static String locationsJson(String locationName) {
+        Gson gson = new Gson();
+        int[] matches = graph.locationsNamed(GraphDB.cleanString(locationName));
+        StringBuilder json = new StringBuilder(64 + 96 * matches.length).append('[');
+        for (int i : matches) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append("{\"lat\":").append(graph.locationLat(i))
+                    .append(",\"lon\":").append(graph.locationLon(i))
+                    .append(",\"name\":").append(gson.toJson(graph.locationName(i)))
+                    .append(",\"id\":").append(graph.locationId(i)).append('}');
+        }
+        return json.append(']').toString();
     }
 
     /** Validates that Rasterer has returned a result that can be rendered.
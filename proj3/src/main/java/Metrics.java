@@ -0,0 +1,235 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.gson.Gson;
+
+/**
+ * Counters for the running server: per endpoint, a latency histogram, a response size
+ * histogram, an error count and a request rate; the same per image encoder; the hit ratios
+ * of the caches, the queues of the Bulkheads and the progress of the TilePrefetchers
+ * registered with watch; and a histogram of how many vertices each route search settled.
+ * Recording only touches Histograms and LongAdders, so it never takes a lock on the request
+ * path; the JSON report is built on demand.
+ */
+class Metrics {
+    /** Counters for one endpoint. Look it up once, at startup, and keep it. */
+    static final class Endpoint {
+        private final Histogram latency = new Histogram();
+        private final Histogram bytes = new Histogram();
+        private final LongAdder errors = new LongAdder();
+        private final Rate rate = new Rate();
+
+        /** Records a request that took nanos and answered with a body of size bytes. */
+        void record(long nanos, long size) {
+            latency.record(nanos);
+            bytes.record(size);
+            rate.tick();
+        }
+
+        /** Records a request that took nanos and failed, or was refused, without a body. */
+        void recordError(long nanos) {
+            latency.record(nanos);
+            errors.increment();
+            rate.tick();
+        }
+
+        Histogram latency() {
+            return latency;
+        }
+
+        Histogram bytes() {
+            return bytes;
+        }
+
+        long errors() {
+            return errors.sum();
+        }
+
+        /** Requests in the last Rate.SECONDS full seconds, per second. */
+        double rate() {
+            return rate.perSecond();
+        }
+    }
+
+    /**
+     * Requests per second over a sliding window, in one-second slots stamped with the second
+     * they count. A slot found stamped with an old second is reset by whichever thread gets
+     * there first; a tick racing with that reset may be lost, which is fine for a rate.
+     */
+    static final class Rate {
+        static final int SECONDS = 60;
+        private final AtomicLongArray stamps = new AtomicLongArray(SECONDS);
+        private final AtomicLongArray counts = new AtomicLongArray(SECONDS);
+
+        void tick() {
+            tick(System.nanoTime() / 1_000_000_000L);
+        }
+
+        void tick(long second) {
+            /* nanoTime, and so second, may be negative. */
+            int slot = (int) Math.floorMod(second, (long) SECONDS);
+            long stamp = stamps.get(slot);
+            if (stamp != second && stamps.compareAndSet(slot, stamp, second)) {
+                counts.set(slot, 0);
+            }
+            counts.incrementAndGet(slot);
+        }
+
+        double perSecond() {
+            return perSecond(System.nanoTime() / 1_000_000_000L);
+        }
+
+        /** Mean over the SECONDS seconds before now; the current, partial second is left out. */
+        double perSecond(long now) {
+            long total = 0;
+            for (int i = 0; i < SECONDS; i += 1) {
+                long age = now - stamps.get(i);
+                if (age >= 1 && age <= SECONDS) {
+                    total += counts.get(i);
+                }
+            }
+            return (double) total / SECONDS;
+        }
+    }
+
+    private final long started = System.nanoTime();
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final Map<String, Endpoint> encoders = new ConcurrentHashMap<>();
+    private final Map<String, LruCache<?, ?>> caches = new ConcurrentHashMap<>();
+    private final Map<String, Bulkhead> bulkheads = new ConcurrentHashMap<>();
+    private final Map<String, TilePrefetcher> prefetchers = new ConcurrentHashMap<>();
+    private final Histogram settled = new Histogram();
+
+    /** Returns the counters of the named endpoint, creating them on first use. */
+    Endpoint endpoint(String name) {
+        return endpoints.computeIfAbsent(name, n -> new Endpoint());
+    }
+
+    /**
+     * Returns the counters of the named image encoder, creating them on first use: encode
+     * times, and encoded sizes in bytes.
+     */
+    Endpoint encoder(String name) {
+        return encoders.computeIfAbsent(name, n -> new Endpoint());
+    }
+
+    /** Includes cache's counters in the report under name. */
+    void watch(String name, LruCache<?, ?> cache) {
+        caches.put(name, cache);
+    }
+
+    /** Includes bulkhead's counters in the report under name. */
+    void watch(String name, Bulkhead bulkhead) {
+        bulkheads.put(name, bulkhead);
+    }
+
+    /** Includes prefetcher's counters in the report under name. */
+    void watch(String name, TilePrefetcher prefetcher) {
+        prefetchers.put(name, prefetcher);
+    }
+
+    /** Records the number of vertices a route search settled. */
+    void recordSettled(long vertices) {
+        settled.record(vertices);
+    }
+
+    Histogram settled() {
+        return settled;
+    }
+
+    /**
+     * Returns the report as JSON: uptime_seconds; under endpoints, for each endpoint its
+     * count, errors, rate_per_second, latency_ms and bytes; the same under encoders, for
+     * each image encoder; under caches, for each watched
+     * cache its hits, misses, hit_ratio, evictions, entries and weight; under admission, for
+     * each watched bulkhead its active, queued, admitted and rejected requests and its limits;
+     * under prefetch, for each watched prefetcher its queued, loaded and dropped tiles; and
+     * under routes, settled_vertices. Histograms are summarized by count, mean, p50, p90,
+     * p99, p999 and max.
+     */
+    String toJson() {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("uptime_seconds", (System.nanoTime() - started) / 1_000_000_000L);
+
+        report.put("endpoints", summaries(endpoints));
+        report.put("encoders", summaries(encoders));
+
+        Map<String, Object> cachesJson = new LinkedHashMap<>();
+        caches.keySet().stream().sorted().forEach(name -> {
+            LruCache<?, ?> cache = caches.get(name);
+            long lookups = cache.hits() + cache.misses();
+            Map<String, Object> json = new LinkedHashMap<>();
+            json.put("hits", cache.hits());
+            json.put("misses", cache.misses());
+            json.put("hit_ratio", lookups == 0 ? 0 : (double) cache.hits() / lookups);
+            json.put("evictions", cache.evictions());
+            json.put("entries", cache.size());
+            json.put("weight", cache.weight());
+            json.put("max_weight", cache.maxWeight());
+            cachesJson.put(name, json);
+        });
+        report.put("caches", cachesJson);
+
+        Map<String, Object> admissionJson = new LinkedHashMap<>();
+        bulkheads.keySet().stream().sorted().forEach(name -> {
+            Bulkhead bulkhead = bulkheads.get(name);
+            Map<String, Object> json = new LinkedHashMap<>();
+            json.put("active", bulkhead.active());
+            json.put("queued", bulkhead.queued());
+            json.put("admitted", bulkhead.admitted());
+            json.put("rejected", bulkhead.rejected());
+            json.put("max_concurrent", bulkhead.maxConcurrent());
+            json.put("max_queued", bulkhead.maxQueued());
+            admissionJson.put(name, json);
+        });
+        report.put("admission", admissionJson);
+
+        Map<String, Object> prefetchJson = new LinkedHashMap<>();
+        prefetchers.keySet().stream().sorted().forEach(name -> {
+            TilePrefetcher prefetcher = prefetchers.get(name);
+            Map<String, Object> json = new LinkedHashMap<>();
+            json.put("queued", prefetcher.queued());
+            json.put("loaded", prefetcher.loaded());
+            json.put("dropped", prefetcher.dropped());
+            prefetchJson.put(name, json);
+        });
+        report.put("prefetch", prefetchJson);
+
+        Map<String, Object> routesJson = new LinkedHashMap<>();
+        routesJson.put("settled_vertices", summary(settled, 1));
+        report.put("routes", routesJson);
+        return new Gson().toJson(report);
+    }
+
+    /** Summaries of the given Endpoints, by name. */
+    private static Map<String, Object> summaries(Map<String, Endpoint> endpoints) {
+        Map<String, Object> endpointsJson = new LinkedHashMap<>();
+        endpoints.keySet().stream().sorted().forEach(name -> {
+            Endpoint e = endpoints.get(name);
+            Map<String, Object> json = new LinkedHashMap<>();
+            json.put("count", e.latency().count());
+            json.put("errors", e.errors());
+            json.put("rate_per_second", e.rate());
+            json.put("latency_ms", summary(e.latency(), 1e-6));
+            json.put("bytes", summary(e.bytes(), 1));
+            endpointsJson.put(name, json);
+        });
+        return endpointsJson;
+    }
+
+    /** Summary of h with every value multiplied by scale, e.g. 1e-6 for nanos to millis. */
+    private static Map<String, Object> summary(Histogram h, double scale) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("count", h.count());
+        json.put("mean", h.mean() * scale);
+        json.put("p50", h.percentile(0.5) * scale);
+        json.put("p90", h.percentile(0.9) * scale);
+        json.put("p99", h.percentile(0.99) * scale);
+        json.put("p999", h.percentile(0.999) * scale);
+        json.put("max", h.max() * scale);
+        return json;
+    }
+}
@@ -0,0 +1,335 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.stream.IntStream;
+
+/**
+ * A compact binary encoding of what GraphDB takes from an OSM file: the nodes, the named
+ * locations, and the roads as chains of node ids. Like OSM's PBF format, the data is cut into
+ * independently deflated blocks of up to BLOCK_SIZE entities, and within a block every id and
+ * coordinate is stored as a zigzag varint delta from the previous one. Coordinates are stored
+ * as fixed point in units of 1e-7 degrees, the precision of OSM itself. Blocks are decoded in
+ * parallel, so reading is bound by the CPU rather than the disk.
+ *
+ * Layout (big-endian):
+ * <pre>
+ *   int MAGIC, int VERSION
+ *   blocks: byte type (NODES, LOCATIONS or WAYS), int entity count, int inflated length,
+ *           int deflated length, deflated bytes
+ *   byte END
+ * </pre>
+ * A NODES entity is an id, longitude and latitude delta; a LOCATIONS entity the same followed
+ * by a varint length and the UTF-8 bytes of the name; a STREETS entity a varint length, the
+ * UTF-8 bytes of the name and the bits of the speed limit as a varint; a WAYS entity a varint
+ * ref count, a varint street index and that many ref deltas. The single STREETS block comes
+ * before any WAYS block.
+ *
+ * Convert an OSM file with {@code java OsmBlockFormat berkeley.osm berkeley.osmb}; GraphDB
+ * reads files ending in EXTENSION in this format.
+ */
+class OsmBlockFormat {
+    static final String EXTENSION = ".osmb";
+
+    private static final int MAGIC = 0x424d4f42;
+    private static final int VERSION = 2;
+    private static final int BLOCK_SIZE = 8000;
+    private static final double SCALE = 1e7;
+
+    private static final byte END = 0;
+    private static final byte NODES = 1;
+    private static final byte LOCATIONS = 2;
+    private static final byte WAYS = 3;
+    private static final byte STREETS = 4;
+
+    /** Writes everything recorded in b to file. */
+    static void write(GraphBuilder b, File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            Block block = new Block();
+
+            for (int start = 0; start < b.nodeCount(); start += BLOCK_SIZE) {
+                int end = Math.min(b.nodeCount(), start + BLOCK_SIZE);
+                long id = 0;
+                long lon = 0;
+                long lat = 0;
+                for (int i = start; i < end; i += 1) {
+                    id = block.delta(b.nodeId(i), id);
+                    lon = block.delta(fixed(b.nodeLon(i)), lon);
+                    lat = block.delta(fixed(b.nodeLat(i)), lat);
+                }
+                block.writeTo(out, NODES, end - start);
+            }
+
+            for (int start = 0; start < b.locationCount(); start += BLOCK_SIZE) {
+                int end = Math.min(b.locationCount(), start + BLOCK_SIZE);
+                long id = 0;
+                long lon = 0;
+                long lat = 0;
+                for (int i = start; i < end; i += 1) {
+                    id = block.delta(b.locationId(i), id);
+                    lon = block.delta(fixed(b.locationLon(i)), lon);
+                    lat = block.delta(fixed(b.locationLat(i)), lat);
+                    byte[] name = b.locationName(i).getBytes(StandardCharsets.UTF_8);
+                    block.varint(name.length);
+                    block.bytes.write(name, 0, name.length);
+                }
+                block.writeTo(out, LOCATIONS, end - start);
+            }
+
+            for (int i = 0; i < b.streetCount(); i += 1) {
+                byte[] name = b.streetName(i).getBytes(StandardCharsets.UTF_8);
+                block.varint(name.length);
+                block.bytes.write(name, 0, name.length);
+                block.varint(Double.doubleToLongBits(b.streetSpeed(i)));
+            }
+            block.writeTo(out, STREETS, b.streetCount());
+
+            /* A way's segments were recorded one after another, each starting where the last
+             * ended, so the ways can be recovered as maximal chains of segments on one
+             * street. */
+            int e = 0;
+            while (e < b.edgeCount()) {
+                int chains = 0;
+                long ref = 0;
+                while (e < b.edgeCount() && chains < BLOCK_SIZE) {
+                    int end = e + 1;
+                    while (end < b.edgeCount() && b.edgeFrom(end) == b.edgeTo(end - 1)
+                            && b.edgeStreet(end) == b.edgeStreet(e)) {
+                        end += 1;
+                    }
+                    block.varint(end - e + 1);
+                    block.varint(b.edgeStreet(e));
+                    ref = block.delta(b.edgeFrom(e), ref);
+                    for (int i = e; i < end; i += 1) {
+                        ref = block.delta(b.edgeTo(i), ref);
+                    }
+                    chains += 1;
+                    e = end;
+                }
+                block.writeTo(out, WAYS, chains);
+            }
+            out.writeByte(END);
+        }
+    }
+
+    /** Reads a file written by {@link #write} into a new builder. */
+    static GraphBuilder read(File file) throws IOException {
+        List<byte[]> blocks = new ArrayList<>();
+        List<int[]> headers = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(file + " is not in OSM block format version " + VERSION);
+            }
+            byte type;
+            while ((type = in.readByte()) != END) {
+                int count = in.readInt();
+                int inflated = in.readInt();
+                byte[] deflated = new byte[in.readInt()];
+                in.readFully(deflated);
+                headers.add(new int[] {type, count, inflated});
+                blocks.add(deflated);
+            }
+        }
+
+        /* The street table is needed to decode the ways, so it is decoded first; interning
+         * it into the first builder gives every street the index it had when written. */
+        GraphBuilder streets = new GraphBuilder();
+        try {
+            for (int i = 0; i < blocks.size(); i += 1) {
+                int[] header = headers.get(i);
+                if (header[0] == STREETS) {
+                    Cursor in = new Cursor(inflate(blocks.get(i), header[2]));
+                    for (int j = 0; j < header[1]; j += 1) {
+                        int length = (int) in.varint();
+                        String name = new String(in.bytes, in.position, length,
+                                StandardCharsets.UTF_8);
+                        in.position += length;
+                        streets.street(name, Double.longBitsToDouble(in.varint()));
+                    }
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        GraphBuilder[] parts = new GraphBuilder[blocks.size()];
+        try {
+            IntStream.range(0, parts.length).parallel().forEach(i -> {
+                int[] header = headers.get(i);
+                if (header[0] != STREETS) {
+                    parts[i] = decode((byte) header[0], header[1],
+                            inflate(blocks.get(i), header[2]), streets);
+                }
+                blocks.set(i, null);
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        GraphBuilder all = streets;
+        for (GraphBuilder part : parts) {
+            if (part != null) {
+                all.append(part);
+            }
+        }
+        return all;
+    }
+
+    private static byte[] inflate(byte[] deflated, int length) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(deflated);
+            byte[] bytes = new byte[length];
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                n += inflater.inflate(bytes, n, length - n);
+                if (inflater.needsInput() && n < length) {
+                    throw new EOFException("Truncated block");
+                }
+            }
+            return bytes;
+        } catch (DataFormatException | EOFException e) {
+            throw new UncheckedIOException(new IOException("Corrupt block", e));
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static GraphBuilder decode(byte type, int count, byte[] bytes,
+                                       GraphBuilder streets) {
+        GraphBuilder b = new GraphBuilder();
+        Cursor in = new Cursor(bytes);
+        long id = 0;
+        long lon = 0;
+        long lat = 0;
+        if (type == WAYS) {
+            long[] refs = new long[64];
+            for (int i = 0; i < count; i += 1) {
+                int n = (int) in.varint();
+                int street = (int) in.varint();
+                if (n > refs.length) {
+                    refs = new long[Math.max(n, refs.length * 2)];
+                }
+                for (int j = 0; j < n; j += 1) {
+                    id += in.delta();
+                    refs[j] = id;
+                }
+                b.addWay(refs, n, streets.streetName(street), streets.streetSpeed(street));
+            }
+            return b;
+        }
+        for (int i = 0; i < count; i += 1) {
+            id += in.delta();
+            lon += in.delta();
+            lat += in.delta();
+            if (type == NODES) {
+                b.addNode(id, lon / SCALE, lat / SCALE);
+            } else {
+                int length = (int) in.varint();
+                String name = new String(bytes, in.position, length, StandardCharsets.UTF_8);
+                in.position += length;
+                b.addLocation(id, lon / SCALE, lat / SCALE, name);
+            }
+        }
+        return b;
+    }
+
+    private static long fixed(double degrees) {
+        return Math.round(degrees * SCALE);
+    }
+
+    /** The block being encoded. */
+    private static class Block {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 16);
+        private final Deflater deflater = new Deflater();
+        private final byte[] deflated = new byte[1 << 16];
+
+        /** Appends value - previous as a zigzag varint and returns value. */
+        long delta(long value, long previous) {
+            long d = value - previous;
+            varint((d << 1) ^ (d >> 63));
+            return value;
+        }
+
+        void varint(long v) {
+            while ((v & ~0x7fL) != 0) {
+                bytes.write((int) (v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            bytes.write((int) v);
+        }
+
+        /** Deflates the block into out behind its header, and empties it. */
+        void writeTo(DataOutputStream out, byte type, int count) throws IOException {
+            byte[] raw = bytes.toByteArray();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 2 + 64);
+            deflater.reset();
+            deflater.setInput(raw);
+            deflater.finish();
+            while (!deflater.finished()) {
+                compressed.write(deflated, 0, deflater.deflate(deflated));
+            }
+            out.writeByte(type);
+            out.writeInt(count);
+            out.writeInt(raw.length);
+            out.writeInt(compressed.size());
+            compressed.writeTo(out);
+            bytes.reset();
+        }
+    }
+
+    /** Reads varints from an inflated block. */
+    private static class Cursor {
+        private final byte[] bytes;
+        private int position;
+
+        Cursor(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        long varint() {
+            long v = 0;
+            for (int shift = 0;; shift += 7) {
+                byte b = bytes[position];
+                position += 1;
+                v |= (long) (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return v;
+                }
+            }
+        }
+
+        long delta() {
+            long v = varint();
+            return (v >>> 1) ^ -(v & 1);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String osmPath = args.length > 0 ? args[0] : "berkeley.osm";
+        String outPath = args.length > 1 ? args[1] : osmPath + EXTENSION;
+        long start = System.currentTimeMillis();
+        GraphBuilder b = OsmReader.parse(new File(osmPath));
+        write(b, new File(outPath));
+        System.out.println("Wrote " + b.nodeCount() + " nodes, " + b.locationCount()
+                + " locations and " + b.edgeCount() + " road segments to " + outPath + " ("
+                + new File(outPath).length() + " bytes) in "
+                + (System.currentTimeMillis() - start) + " ms.");
+    }
+}
@@ -0,0 +1,474 @@
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A streaming OSM XML reader that feeds a GraphBuilder, as a fast alternative to parsing with
+ * SAX and GraphBuildingHandler. It understands just the XML that OSM extracts use (UTF-8
+ * elements and attributes, comments, processing instructions and character references) and
+ * works on raw bytes: element and attribute names are matched against the few names it cares
+ * about without becoming Strings, ids and coordinates are parsed straight from the attribute
+ * bytes, and way node references collect in one reusable long buffer. Only tag values that
+ * are kept (location and way names, speed limits) or looked up (highway types) are decoded
+ * into Strings, so the heap stays flat however large the file is.
+ *
+ * It builds exactly the graph GraphBuildingHandler does.
+ */
+class OsmReader {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /* Element names, interned as small ints. */
+    private static final int OTHER = 0;
+    private static final int NODE = 1;
+    private static final int WAY = 2;
+    private static final int ND = 3;
+    private static final int TAG = 4;
+    private static final byte[][] ELEMENTS = {null, bytes("node"), bytes("way"), bytes("nd"),
+        bytes("tag")};
+
+    /* Attribute names, interned as indices into the attribute value slots. */
+    private static final int ID = 0;
+    private static final int LAT = 1;
+    private static final int LON = 2;
+    private static final int REF = 3;
+    private static final int K = 4;
+    private static final int V = 5;
+    private static final byte[][] ATTRIBUTES = {bytes("id"), bytes("lat"), bytes("lon"),
+        bytes("ref"), bytes("k"), bytes("v")};
+
+    private static final byte[] HIGHWAY = bytes("highway");
+    private static final byte[] NAME = bytes("name");
+    private static final byte[] MAXSPEED = bytes("maxspeed");
+
+    /** Powers of ten that are exact doubles, for parsing decimals with one division. */
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i += 1) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final InputStream in;
+    private final GraphBuilder out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+
+    /** Scratch space for names, and the value bytes of the current element's attributes. */
+    private byte[] name = new byte[32];
+    private final byte[][] values = new byte[ATTRIBUTES.length][64];
+    private final int[] valueLengths = new int[ATTRIBUTES.length];
+
+    /** Mirrors GraphBuildingHandler.activeState: NODE, WAY or OTHER. */
+    private int active = OTHER;
+    private long lastNodeId;
+    private double lastNodeLon;
+    private double lastNodeLat;
+    private long[] wayRefs = new long[64];
+    private int wayLength;
+    private boolean wayValid;
+    private String wayHighway;
+    private String wayName;
+    private String wayMaxspeed;
+
+    OsmReader(InputStream in, GraphBuilder out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Whether the OSM XML file at path is compressed, judging by its name. */
+    static boolean isCompressed(String path) {
+        return path.endsWith(".gz") || path.endsWith(".bz2");
+    }
+
+    /**
+     * Opens the OSM XML file, decompressing it on the fly if its name ends in .gz (gzip) or
+     * .bz2 (bzip2).
+     */
+    static InputStream open(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            if (file.getName().endsWith(".gz")) {
+                return new GZIPInputStream(in, BUFFER_SIZE);
+            } else if (file.getName().endsWith(".bz2")) {
+                return Bzip2.open(in);
+            }
+            return in;
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Keeps the reference to commons-compress out of OsmReader itself, so that the library is
+     * only loaded, and only needed on the class path, when a .bz2 file is actually read.
+     */
+    private static class Bzip2 {
+        static InputStream open(InputStream in) throws IOException {
+            return new BZip2CompressorInputStream(new BufferedInputStream(in, BUFFER_SIZE), true);
+        }
+    }
+
+    /** Reads the OSM XML file, compressed or not, into a new builder. */
+    static GraphBuilder parse(File file) throws IOException {
+        GraphBuilder b = new GraphBuilder();
+        try (InputStream in = open(file)) {
+            new OsmReader(in, b).read();
+        }
+        return b;
+    }
+
+    /** Reads the whole stream, reporting nodes, locations and roads to the builder. */
+    void read() throws IOException {
+        int c;
+        while ((c = next()) >= 0) {
+            if (c != '<') {
+                continue;
+            }
+            c = next();
+            if (c == '?') {
+                skipPast('?', '>');
+            } else if (c == '!') {
+                if (next() == '-' && next() == '-') {
+                    skipPast('-', '-');
+                    skipPast('>');
+                } else {
+                    skipPast('>');
+                }
+            } else if (c == '/') {
+                int element = element(readName(next()));
+                skipPast('>');
+                endElement(element);
+            } else {
+                int element = element(readName(c));
+                boolean empty = readAttributes();
+                startElement(element);
+                if (empty) {
+                    endElement(element);
+                }
+            }
+        }
+    }
+
+    private void startElement(int element) {
+        if (element == NODE) {
+            active = NODE;
+            lastNodeId = parseLong(ID);
+            lastNodeLon = parseDouble(LON);
+            lastNodeLat = parseDouble(LAT);
+            out.addNode(lastNodeId, lastNodeLon, lastNodeLat);
+        } else if (element == WAY) {
+            active = WAY;
+            wayLength = 0;
+            wayValid = false;
+            wayHighway = null;
+            wayName = null;
+            wayMaxspeed = null;
+        } else if (active == WAY && element == ND) {
+            if (wayLength == wayRefs.length) {
+                wayRefs = Arrays.copyOf(wayRefs, wayLength * 2);
+            }
+            wayRefs[wayLength] = parseLong(REF);
+            wayLength += 1;
+        } else if (active == WAY && element == TAG) {
+            if (valueEquals(K, HIGHWAY)) {
+                wayHighway = value(V);
+                wayValid = GraphBuildingHandler.ALLOWED_HIGHWAY_TYPES.contains(wayHighway);
+            } else if (valueEquals(K, NAME)) {
+                wayName = value(V);
+            } else if (valueEquals(K, MAXSPEED)) {
+                wayMaxspeed = value(V);
+            }
+        } else if (active == NODE && element == TAG && valueEquals(K, NAME)) {
+            out.addLocation(lastNodeId, lastNodeLon, lastNodeLat, value(V));
+        }
+    }
+
+    private void endElement(int element) {
+        if (element == WAY) {
+            if (wayValid) {
+                out.addWay(wayRefs, wayLength, wayName,
+                        GraphBuildingHandler.speedOf(wayHighway, wayMaxspeed));
+            }
+            wayLength = 0;
+            active = OTHER;
+        } else if (element == NODE) {
+            active = OTHER;
+        }
+    }
+
+    /** Next byte of the stream, or -1 at its end. */
+    private int next() throws IOException {
+        if (position == limit) {
+            limit = in.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        int c = buffer[position] & 0xff;
+        position += 1;
+        return c;
+    }
+
+    private void skipPast(int last) throws IOException {
+        int c;
+        do {
+            c = next();
+        } while (c >= 0 && c != last);
+    }
+
+    /** Skips past the next occurrence of the two bytes first, last. */
+    private void skipPast(int first, int last) throws IOException {
+        int previous = -1;
+        int c;
+        while ((c = next()) >= 0 && !(previous == first && c == last)) {
+            previous = c;
+        }
+    }
+
+    /**
+     * Reads a name starting with the byte c into the name buffer and returns its length; the
+     * byte that ended it is pushed back.
+     */
+    private int readName(int c) throws IOException {
+        int n = 0;
+        while (c >= 0 && c != '>' && c != '/' && c != '=' && !isSpace(c)) {
+            if (n == name.length) {
+                name = Arrays.copyOf(name, n * 2);
+            }
+            name[n] = (byte) c;
+            n += 1;
+            c = next();
+        }
+        if (c >= 0) {
+            position -= 1;
+        }
+        return n;
+    }
+
+    private static boolean isSpace(int c) {
+        return c == ' ' || c == '\n' || c == '\t' || c == '\r';
+    }
+
+    private int element(int length) {
+        for (int e = NODE; e < ELEMENTS.length; e += 1) {
+            if (nameEquals(length, ELEMENTS[e])) {
+                return e;
+            }
+        }
+        return OTHER;
+    }
+
+    private boolean nameEquals(int length, byte[] expected) {
+        if (length != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i += 1) {
+            if (name[i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the attributes of the current start tag up to its closing '>', keeping the values
+     * of the ones we know. Returns true if the element is empty ("/>").
+     */
+    private boolean readAttributes() throws IOException {
+        Arrays.fill(valueLengths, -1);
+        int c;
+        while ((c = next()) >= 0) {
+            if (c == '>') {
+                return false;
+            } else if (c == '/') {
+                skipPast('>');
+                return true;
+            } else if (isSpace(c)) {
+                continue;
+            }
+            int length = readName(c);
+            int slot = -1;
+            for (int a = 0; a < ATTRIBUTES.length; a += 1) {
+                if (nameEquals(length, ATTRIBUTES[a])) {
+                    slot = a;
+                    break;
+                }
+            }
+            do {
+                c = next();
+            } while (c >= 0 && c != '"' && c != '\'');
+            readValue(c, slot);
+        }
+        return false;
+    }
+
+    /**
+     * Reads an attribute value up to the closing quote into the given slot (or discards it if
+     * slot is -1), replacing character references by the UTF-8 bytes they stand for.
+     */
+    private void readValue(int quote, int slot) throws IOException {
+        int n = 0;
+        int c;
+        while ((c = next()) >= 0 && c != quote) {
+            if (slot < 0) {
+                continue;
+            }
+            if (c == '&') {
+                n = appendCodePoint(slot, n, readReference());
+            } else {
+                n = append(slot, n, c);
+            }
+        }
+        if (slot >= 0) {
+            valueLengths[slot] = n;
+        }
+    }
+
+    private int append(int slot, int n, int c) {
+        if (n == values[slot].length) {
+            values[slot] = Arrays.copyOf(values[slot], n * 2);
+        }
+        values[slot][n] = (byte) c;
+        return n + 1;
+    }
+
+    private int appendCodePoint(int slot, int n, int cp) {
+        if (cp < 0x80) {
+            return append(slot, n, cp);
+        } else if (cp < 0x800) {
+            n = append(slot, n, 0xc0 | cp >> 6);
+        } else if (cp < 0x10000) {
+            n = append(slot, n, 0xe0 | cp >> 12);
+            n = append(slot, n, 0x80 | (cp >> 6 & 0x3f));
+        } else {
+            n = append(slot, n, 0xf0 | cp >> 18);
+            n = append(slot, n, 0x80 | (cp >> 12 & 0x3f));
+            n = append(slot, n, 0x80 | (cp >> 6 & 0x3f));
+        }
+        return append(slot, n, 0x80 | (cp & 0x3f));
+    }
+
+    /** Reads the rest of a character or entity reference after its '&'. */
+    private int readReference() throws IOException {
+        int length = 0;
+        int c;
+        while ((c = next()) >= 0 && c != ';') {
+            if (length == name.length) {
+                name = Arrays.copyOf(name, length * 2);
+            }
+            name[length] = (byte) c;
+            length += 1;
+        }
+        String reference = new String(name, 0, length, StandardCharsets.US_ASCII);
+        switch (reference) {
+            case "amp":
+                return '&';
+            case "lt":
+                return '<';
+            case "gt":
+                return '>';
+            case "quot":
+                return '"';
+            case "apos":
+                return '\'';
+            default:
+                if (reference.startsWith("#x")) {
+                    return Integer.parseInt(reference.substring(2), 16);
+                } else if (reference.startsWith("#")) {
+                    return Integer.parseInt(reference.substring(1));
+                }
+                throw new IllegalArgumentException("Unknown entity &" + reference + ";");
+        }
+    }
+
+    private boolean valueEquals(int slot, byte[] expected) {
+        int n = valueLengths[slot];
+        if (n != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < n; i += 1) {
+            if (values[slot][i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** The value of the attribute in slot, or null if the element did not have it. */
+    private String value(int slot) {
+        int n = valueLengths[slot];
+        return n < 0 ? null : new String(values[slot], 0, n, StandardCharsets.UTF_8);
+    }
+
+    private long parseLong(int slot) {
+        byte[] v = values[slot];
+        int n = valueLengths[slot];
+        int i = n > 0 && v[0] == '-' ? 1 : 0;
+        if (n <= i) {
+            return Long.parseLong(value(slot));
+        }
+        long result = 0;
+        for (int j = i; j < n; j += 1) {
+            int digit = v[j] - '0';
+            if (digit < 0 || digit > 9 || result > (Long.MAX_VALUE - digit) / 10) {
+                return Long.parseLong(value(slot));
+            }
+            result = result * 10 + digit;
+        }
+        return i == 1 ? -result : result;
+    }
+
+    /**
+     * Parses a decimal such as "-122.2591" from the bytes of slot. Up to 15 significant
+     * digits the digits form an exact long and the scale an exact power of ten, so a single
+     * division is correctly rounded and agrees with Double.parseDouble; anything longer, or
+     * with an exponent, is handed to Double.parseDouble.
+     */
+    private double parseDouble(int slot) {
+        byte[] v = values[slot];
+        int n = valueLengths[slot];
+        int i = n > 0 && (v[0] == '-' || v[0] == '+') ? 1 : 0;
+        long mantissa = 0;
+        int digits = 0;
+        int scale = -1;
+        boolean anyDigit = false;
+        for (int j = i; j < n; j += 1) {
+            int c = v[j];
+            if (c == '.' && scale < 0) {
+                scale = 0;
+            } else if (c >= '0' && c <= '9') {
+                anyDigit = true;
+                mantissa = mantissa * 10 + (c - '0');
+                digits += mantissa == 0 ? 0 : 1;
+                scale += scale >= 0 ? 1 : 0;
+                if (digits > 15 || scale >= POWERS_OF_TEN.length) {
+                    return Double.parseDouble(value(slot));
+                }
+            } else {
+                return Double.parseDouble(value(slot));
+            }
+        }
+        if (!anyDigit) {
+            return Double.parseDouble(value(slot));
+        }
+        double result = scale > 0 ? mantissa / POWERS_OF_TEN[scale] : mantissa;
+        return i == 1 && v[0] == '-' ? -result : result;
+    }
+}
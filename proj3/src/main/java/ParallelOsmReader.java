@@ -0,0 +1,158 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.IntStream;
+
+/**
+ * Reads an OSM XML file with several OsmReaders at once. The file is cut into chunks of
+ * roughly CHUNK_SIZE bytes, each starting at a top-level node, way or relation element, so
+ * every chunk holds whole elements and can be parsed on its own. The chunks are parsed on
+ * the common fork-join pool, each into its own GraphBuilder, and the builders are then
+ * concatenated in file order. Way references across chunks need no special handling: they
+ * stay OSM ids until GraphBuilder.buildInto resolves them against the sorted id table.
+ *
+ * The cut points are found by looking for the bytes "&lt;node", "&lt;way" or "&lt;relation",
+ * which cannot occur inside attribute values; a comment containing them could mislead it,
+ * but OSM extracts have none past their header.
+ */
+class ParallelOsmReader {
+    /** Target size of a chunk; files no larger than this are read in one piece. */
+    static final long CHUNK_SIZE = 8 << 20;
+    private static final int WINDOW = 1 << 16;
+    private static final byte[][] SPLIT_ELEMENTS = {bytes("node"), bytes("way"),
+        bytes("relation")};
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /** Parses the OSM file and returns a builder holding everything it contains. */
+    static GraphBuilder read(File file) throws IOException {
+        return read(file, CHUNK_SIZE);
+    }
+
+    /** Same as {@link #read(File)}, with chunks of about chunkSize bytes. */
+    static GraphBuilder read(File file, long chunkSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long[] cuts = cuts(channel, chunkSize);
+            GraphBuilder[] parts = new GraphBuilder[cuts.length - 1];
+            try {
+                IntStream.range(0, parts.length).parallel().forEach(i -> {
+                    GraphBuilder part = new GraphBuilder();
+                    try {
+                        new OsmReader(new RangeInputStream(channel, cuts[i], cuts[i + 1]), part)
+                                .read();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    parts[i] = part;
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            GraphBuilder all = parts[0];
+            for (int i = 1; i < parts.length; i += 1) {
+                all.append(parts[i]);
+                parts[i] = null;
+            }
+            return all;
+        }
+    }
+
+    /**
+     * Offsets at which chunks start, followed by the file size; the first chunk starts at 0.
+     */
+    private static long[] cuts(FileChannel channel, long chunkSize) throws IOException {
+        long size = channel.size();
+        int chunks = (int) Math.max(1, size / chunkSize);
+        long[] cuts = new long[chunks + 1];
+        cuts[chunks] = size;
+        for (int i = 1; i < chunks; i += 1) {
+            cuts[i] = nextElement(channel, Math.max(cuts[i - 1], i * (size / chunks)), size);
+        }
+        return cuts;
+    }
+
+    /** Offset of the first split element starting at or after from, or size if none does. */
+    private static long nextElement(FileChannel channel, long from, long size)
+            throws IOException {
+        ByteBuffer window = ByteBuffer.allocate(WINDOW);
+        for (long start = from; start < size; start += WINDOW - 16) {
+            window.clear();
+            int n = 0;
+            while (n < WINDOW) {
+                int read = channel.read(window, start + n);
+                if (read <= 0) {
+                    break;
+                }
+                n += read;
+            }
+            for (int i = 0; i < n; i += 1) {
+                if (window.get(i) == '<' && startsElement(window, i + 1, n)) {
+                    return start + i;
+                }
+            }
+            if (start + n >= size) {
+                break;
+            }
+        }
+        return size;
+    }
+
+    /** Whether a split element's name, followed by a space or '>', starts at i. */
+    private static boolean startsElement(ByteBuffer window, int i, int n) {
+        for (byte[] name : SPLIT_ELEMENTS) {
+            int end = i + name.length;
+            if (end >= n) {
+                continue;
+            }
+            boolean match = true;
+            for (int j = 0; j < name.length && match; j += 1) {
+                match = window.get(i + j) == name[j];
+            }
+            int after = window.get(end);
+            if (match && (after == ' ' || after == '\n' || after == '\t' || after == '\r'
+                    || after == '>' || after == '/')) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Reads the bytes from start to end of a channel shared with other threads. */
+    private static class RangeInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        RangeInputStream(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int n = (int) Math.min(len, end - position);
+            n = channel.read(ByteBuffer.wrap(b, off, n), position);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) <= 0 ? -1 : b[0] & 0xff;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Autocomplete index over location names. The distinct names are sorted by their cleaned form
+ * (see GraphDB.cleanString), so the names matching a prefix form one contiguous range that
+ * two binary searches find. Listing a range costs time proportional to its size; the best k
+ * names of a range come from a sparse table of range minima over the names' ranks, so a top-k
+ * query costs O(log n + k log k) however many names match.
+ *
+ * Names are ranked by popularity, i.e. how many locations carry them, then by length, so
+ * that "Chevron" with its many stations beats a one-off "Chevys Fresh Mex".
+ */
+class PrefixIndex {
+    /** Cleaned forms of the distinct names, sorted; names[i] is the name cleaned to keys[i]. */
+    private final String[] keys;
+    private final String[] names;
+    /** rank[i] is the position of names[i] in the popularity order; 0 is the best. */
+    private final int[] rank;
+    /** best[j][i] is the index of the best ranked name among i .. i + 2^j - 1. */
+    private final int[][] best;
+
+    /** Indexes the given names, which may contain duplicates and nulls. */
+    PrefixIndex(String[] allNames) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (String name : allNames) {
+            if (name != null) {
+                counts.merge(name, 1, Integer::sum);
+            }
+        }
+        int n = counts.size();
+        String[][] entries = new String[n][];
+        int i = 0;
+        for (String name : counts.keySet()) {
+            entries[i] = new String[] {GraphDB.cleanString(name), name};
+            i += 1;
+        }
+        Arrays.sort(entries, Comparator.<String[], String>comparing(e -> e[0])
+                .thenComparing(e -> e[1]));
+        keys = new String[n];
+        names = new String[n];
+        for (i = 0; i < n; i += 1) {
+            keys[i] = entries[i][0];
+            names[i] = entries[i][1];
+        }
+
+        Integer[] order = new Integer[n];
+        for (i = 0; i < n; i += 1) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.<Integer>comparingInt(j -> -counts.get(names[j]))
+                .thenComparingInt(j -> names[j].length())
+                .thenComparing(j -> names[j]));
+        rank = new int[n];
+        for (i = 0; i < n; i += 1) {
+            rank[order[i]] = i;
+        }
+
+        int levels = 32 - Integer.numberOfLeadingZeros(Math.max(1, n));
+        best = new int[levels][];
+        best[0] = new int[n];
+        for (i = 0; i < n; i += 1) {
+            best[0][i] = i;
+        }
+        for (int j = 1; j < levels; j += 1) {
+            int half = 1 << (j - 1);
+            best[j] = new int[n - (1 << j) + 1];
+            for (i = 0; i < best[j].length; i += 1) {
+                best[j][i] = better(best[j - 1][i], best[j - 1][i + half]);
+            }
+        }
+    }
+
+    /** Number of distinct names. */
+    int size() {
+        return names.length;
+    }
+
+    /**
+     * Returns every distinct name whose cleaned form starts with the cleaned prefix, in order
+     * of their cleaned forms.
+     */
+    List<String> all(String prefix) {
+        String p = GraphDB.cleanString(prefix);
+        int lo = lowerBound(p);
+        int hi = upperBound(p, lo);
+        return new ArrayList<>(Arrays.asList(names).subList(lo, hi));
+    }
+
+    /**
+     * Returns at most k of the names whose cleaned form starts with the cleaned prefix, the
+     * most popular first.
+     */
+    List<String> top(String prefix, int k) {
+        String p = GraphDB.cleanString(prefix);
+        int lo = lowerBound(p);
+        int hi = upperBound(p, lo);
+        List<String> result = new ArrayList<>(Math.max(0, Math.min(k, hi - lo)));
+        if (k <= 0 || lo == hi) {
+            return result;
+        }
+        /* Each queued range [lo, hi) carries the index of its best name. Taking the best
+         * range's name and queueing the two ranges either side of it yields names in rank
+         * order while only ever queueing two ranges per name taken. */
+        PriorityQueue<int[]> ranges = new PriorityQueue<>(Comparator.comparingInt(r -> rank[r[2]]));
+        ranges.add(new int[] {lo, hi, bestIn(lo, hi)});
+        while (result.size() < k && !ranges.isEmpty()) {
+            int[] r = ranges.poll();
+            int m = r[2];
+            result.add(names[m]);
+            if (r[0] < m) {
+                ranges.add(new int[] {r[0], m, bestIn(r[0], m)});
+            }
+            if (m + 1 < r[1]) {
+                ranges.add(new int[] {m + 1, r[1], bestIn(m + 1, r[1])});
+            }
+        }
+        return result;
+    }
+
+    /** Index of the best ranked name among lo .. hi - 1, which must not be empty. */
+    private int bestIn(int lo, int hi) {
+        int j = 31 - Integer.numberOfLeadingZeros(hi - lo);
+        return better(best[j][lo], best[j][hi - (1 << j)]);
+    }
+
+    private int better(int a, int b) {
+        return rank[a] <= rank[b] ? a : b;
+    }
+
+    /** The first index whose key is not less than p. */
+    private int lowerBound(String p) {
+        int lo = 0;
+        int hi = keys.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid].compareTo(p) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** The first index from lo on whose key does not start with p. */
+    private int upperBound(String p, int lo) {
+        int hi = keys.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid].startsWith(p)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
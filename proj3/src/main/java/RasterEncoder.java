@@ -0,0 +1,119 @@
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Encodes rastered images as PNG, at a chosen deflate level, or JPEG, at a chosen quality.
+ * ImageIO.write looks up a writer, builds its parameters and grows a fresh output buffer on
+ * every call; here each thread keeps its own writer per format, with its parameters set once,
+ * and its own output buffer, which only ever grows to the largest image it has encoded.
+ */
+class RasterEncoder {
+    /** An image format the encoder can write. */
+    enum Format {
+        PNG("png", "image/png"), JPEG("jpeg", "image/jpeg");
+
+        private final String extension;
+        private final String mimeType;
+
+        Format(String extension, String mimeType) {
+            this.extension = extension;
+            this.mimeType = mimeType;
+        }
+
+        /** Lower-case name, as in a request's format parameter or a file extension. */
+        String extension() {
+            return extension;
+        }
+
+        String mimeType() {
+            return mimeType;
+        }
+
+        /** The format named name (png or jpeg, in any case), or null if there is none. */
+        static Format of(String name) {
+            for (Format f : values()) {
+                if (f.extension.equalsIgnoreCase(name)) {
+                    return f;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final int pngLevel;
+    private final float jpegQuality;
+    private final ThreadLocal<Writers> writers = ThreadLocal.withInitial(Writers::new);
+
+    /**
+     * @param pngLevel Deflate level of PNGs, from 0 (none, fastest) to 9 (smallest), or -1 for
+     *                 the writer's default. Java 8's PNG writer always uses its default.
+     * @param jpegQuality Quality of JPEGs, from 0 (smallest) to 1 (best).
+     */
+    RasterEncoder(int pngLevel, float jpegQuality) {
+        if (pngLevel < -1 || pngLevel > 9 || !(jpegQuality >= 0 && jpegQuality <= 1)) {
+            throw new IllegalArgumentException("Bad PNG level " + pngLevel
+                    + " or JPEG quality " + jpegQuality);
+        }
+        this.pngLevel = pngLevel;
+        this.jpegQuality = jpegQuality;
+    }
+
+    /** Returns img encoded in format. */
+    byte[] encode(BufferedImage img, Format format) {
+        Writers w = writers.get();
+        ImageWriter writer = w.writer(format);
+        w.out.reset();
+        try (ImageOutputStream ios = new MemoryCacheImageOutputStream(w.out)) {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(img, null, null), w.params[format.ordinal()]);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            writer.setOutput(null);
+        }
+        return w.out.toByteArray();
+    }
+
+    /** One thread's writers, created on first use, and output buffer. */
+    private class Writers {
+        private final ImageWriter[] writers = new ImageWriter[Format.values().length];
+        private final ImageWriteParam[] params = new ImageWriteParam[writers.length];
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 16);
+
+        ImageWriter writer(Format format) {
+            int i = format.ordinal();
+            if (writers[i] == null) {
+                Iterator<ImageWriter> found = ImageIO.getImageWritersByFormatName(
+                        format.extension());
+                if (!found.hasNext()) {
+                    throw new IllegalStateException("No ImageIO writer for " + format);
+                }
+                writers[i] = found.next();
+                params[i] = params(writers[i], format);
+            }
+            return writers[i];
+        }
+
+        private ImageWriteParam params(ImageWriter writer, Format format) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (format == Format.JPEG) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(jpegQuality);
+            } else if (pngLevel >= 0 && param.canWriteCompressed()) {
+                /* The PNG writer deflates at level 9 - 9 * quality. */
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality((9 - pngLevel) / 9f);
+            }
+            return param;
+        }
+    }
+}
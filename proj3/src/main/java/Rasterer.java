@@ -1,3 +1,4 @@
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -8,13 +9,106 @@ import java.util.Map;
  * not draw the output correctly.
  */
 public class Rasterer {
-    // Recommended: QuadTree instance variable. You'll need to make
-    //              your own QuadTree since there is no built-in quadtree in Java.
+    /** Deepest level of the tile quadtree; depth d has 2^d x 2^d tiles. */
+    static final int MAX_DEPTH = 7;
+    private static final double ROOT_WIDTH = MapServer.ROOT_LRLON - MapServer.ROOT_ULLON;
+    private static final double ROOT_HEIGHT = MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT;
 
-    /** imgRoot is the name of the directory containing the images.
-     *  You may not actually need this for your class. */
+    /**
+     * The quadtree is implicit: the tile at column x and row y of depth d covers a fixed box
+     * computable from x, y and d, so tiles are found arithmetically rather than by walking a
+     * tree. names[d][y][x] is that tile's file name, e.g. "img/2143.png", where each digit
+     * picks a quadrant (1 NW, 2 NE, 3 SW, 4 SE) one level further down. The names are built
+     * once and interned, so a raster query only copies references.
+     */
+    private final String[][][] names;
+
+    /** imgRoot is the name of the directory containing the images. */
     public Rasterer(String imgRoot) {
-        // YOUR CODE HERE
+        names = new String[MAX_DEPTH + 1][][];
+        names[0] = new String[][] {{(imgRoot + "root.png").intern()}};
+        for (int d = 1; d <= MAX_DEPTH; d += 1) {
+            int side = 1 << d;
+            names[d] = new String[side][side];
+            for (int y = 0; y < side; y += 1) {
+                for (int x = 0; x < side; x += 1) {
+                    names[d][y][x] = (imgRoot + quadrants(x, y, d) + ".png").intern();
+                }
+            }
+        }
+    }
+
+    /** The quadrant digits naming the tile at column x and row y of depth d. */
+    private static String quadrants(int x, int y, int d) {
+        char[] digits = new char[d];
+        for (int i = 0; i < d; i += 1) {
+            int bit = d - 1 - i;
+            digits[i] = (char) ('1' + ((x >> bit) & 1) + 2 * ((y >> bit) & 1));
+        }
+        return new String(digits);
+    }
+
+    /** File name of the tile at column x and row y of depth d. */
+    String tileName(int depth, int x, int y) {
+        return names[depth][y][x];
+    }
+
+    /**
+     * The inverse of tileName: {depth, x, y} of the tile a file name such as "img/2143.png"
+     * names, whatever its directory, or null if it does not name a tile.
+     */
+    static int[] tileOf(String fileName) {
+        if (!fileName.endsWith(".png")) {
+            return null;
+        }
+        int start = fileName.lastIndexOf('/') + 1;
+        int end = fileName.length() - ".png".length();
+        if (end - start == 4 && fileName.startsWith("root", start)) {
+            return new int[] {0, 0, 0};
+        }
+        int depth = end - start;
+        if (depth < 1 || depth > MAX_DEPTH) {
+            return null;
+        }
+        int x = 0;
+        int y = 0;
+        for (int i = start; i < end; i += 1) {
+            int q = fileName.charAt(i) - '1';
+            if (q < 0 || q > 3) {
+                return null;
+            }
+            x = (x << 1) | (q & 1);
+            y = (y << 1) | (q >> 1);
+        }
+        return new int[] {depth, x, y};
+    }
+
+    /**
+     * The shallowest depth whose tiles cover no more longitude per pixel than lonDPP, or
+     * MAX_DEPTH if even those are too coarse. Tiles of depth d have ROOT_WIDTH / 2^d /
+     * TILE_SIZE degrees per pixel, so d is a base 2 logarithm rounded up.
+     */
+    static int depthFor(double lonDPP) {
+        double ratio = ROOT_WIDTH / MapServer.TILE_SIZE / lonDPP;
+        if (!(ratio > 2)) {
+            return 1;
+        }
+        int d = 64 - Long.numberOfLeadingZeros((long) Math.ceil(ratio) - 1);
+        return Math.min(d, MAX_DEPTH);
+    }
+
+    /** Column of the depth d tile containing longitude lon, clamped to the map. */
+    static int column(double lon, int depth) {
+        int side = 1 << depth;
+        int x = (int) Math.floor((lon - MapServer.ROOT_ULLON) / ROOT_WIDTH * side);
+        return Math.max(0, Math.min(side - 1, x));
+    }
+
+    /** Row of the depth d tile containing latitude lat, clamped to the map. */
+    static int row(double lat, int depth) {
+        int side = 1 << depth;
+        int y = (int) Math.floor((MapServer.ROOT_ULLAT - lat) / ROOT_HEIGHT * side);
+        return Math.max(0, Math.min(side - 1, y));
     }
 
     /**
@@ -49,10 +143,39 @@ public class Rasterer {
      * @see #REQUIRED_RASTER_REQUEST_PARAMS
      */
     public Map<String, Object> getMapRaster(Map<String, Double> params) {
-        // System.out.println(params);
         Map<String, Object> results = new HashMap<>();
-        System.out.println("Since you haven't implemented getMapRaster, nothing is displayed in "
-                           + "your browser.");
+        double ullon = params.get("ullon");
+        double ullat = params.get("ullat");
+        double lrlon = params.get("lrlon");
+        double lrlat = params.get("lrlat");
+        double w = params.get("w");
+        if (!(ullon < lrlon && lrlat < ullat && w > 0)
+                || lrlon <= MapServer.ROOT_ULLON || ullon >= MapServer.ROOT_LRLON
+                || ullat <= MapServer.ROOT_LRLAT || lrlat >= MapServer.ROOT_ULLAT) {
+            results.put("query_success", false);
+            return results;
+        }
+
+        int depth = depthFor((lrlon - ullon) / w);
+        int xmin = column(ullon, depth);
+        int xmax = column(lrlon, depth);
+        int ymin = row(ullat, depth);
+        int ymax = row(lrlat, depth);
+
+        String[][] grid = new String[ymax - ymin + 1][];
+        for (int y = ymin; y <= ymax; y += 1) {
+            grid[y - ymin] = Arrays.copyOfRange(names[depth][y], xmin, xmax + 1);
+        }
+
+        double tileWidth = ROOT_WIDTH / (1 << depth);
+        double tileHeight = ROOT_HEIGHT / (1 << depth);
+        results.put("render_grid", grid);
+        results.put("raster_ul_lon", MapServer.ROOT_ULLON + xmin * tileWidth);
+        results.put("raster_ul_lat", MapServer.ROOT_ULLAT - ymin * tileHeight);
+        results.put("raster_lr_lon", MapServer.ROOT_ULLON + (xmax + 1) * tileWidth);
+        results.put("raster_lr_lat", MapServer.ROOT_ULLAT - (ymax + 1) * tileHeight);
+        results.put("depth", depth);
+        results.put("query_success", true);
         return results;
     }
 
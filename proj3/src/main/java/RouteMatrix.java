@@ -0,0 +1,50 @@
+/**
+ * Shortest route lengths, and optionally the routes, from each of a set of sources to each of
+ * a set of targets, as computed by Router.routeMatrix. Lengths are route weights under the
+ * metric the matrix was computed for (degrees for DISTANCE, seconds for TIME) and are
+ * infinite where no route exists.
+ */
+class RouteMatrix {
+    private final int sources;
+    private final int targets;
+    /** Row-major: the length from source i to target j is at i * targets + j. */
+    private final double[] lengths;
+    /** Routes in the same order, or null if they were not asked for. */
+    private final long[][] paths;
+
+    RouteMatrix(int sources, int targets, boolean withPaths) {
+        this.sources = sources;
+        this.targets = targets;
+        this.lengths = new double[sources * targets];
+        this.paths = withPaths ? new long[sources * targets][] : null;
+    }
+
+    int sources() {
+        return sources;
+    }
+
+    int targets() {
+        return targets;
+    }
+
+    boolean hasPaths() {
+        return paths != null;
+    }
+
+    /** Length of the shortest route from source i to target j. */
+    double length(int i, int j) {
+        return lengths[i * targets + j];
+    }
+
+    /** OSM ids along the shortest route from source i to target j; empty if there is none. */
+    long[] path(int i, int j) {
+        return paths[i * targets + j];
+    }
+
+    void set(int i, int j, double length, long[] path) {
+        lengths[i * targets + j] = length;
+        if (paths != null) {
+            paths[i * targets + j] = path;
+        }
+    }
+}
@@ -0,0 +1,323 @@
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * Reusable shortest-path search state over one GraphDB. All per-vertex arrays (distances,
+ * parents, visit stamps) and both priority queues are allocated once, indexed by dense vertex
+ * index, and reset between searches by bumping an epoch counter, so a search allocates nothing
+ * but its result. A RouteSearch is not thread-safe; Router keeps one per thread.
+ *
+ * Each search minimizes one GraphDB.Metric. Edge weights come from GraphDB.weight and the A*
+ * heuristic from GraphDB.estimate, which is consistent under either metric: the straight-line
+ * distance, or the straight-line distance at the top speed limit of the map.
+ */
+class RouteSearch {
+    private static final int FORWARD = 0;
+    private static final int BACKWARD = 1;
+
+    private final GraphDB g;
+    private final double[][] dist;
+    private final int[][] parent;
+    /** dist[side][v] and parent[side][v] are only valid while reached[side][v] == epoch. */
+    private final int[][] reached;
+    private final int[][] settled;
+    private final VertexHeap[] queue;
+    private int epoch;
+
+    private int settledCount;
+    private int meet;
+    private double best;
+    /** Metric of the current search. */
+    private GraphDB.Metric metric = GraphDB.Metric.DISTANCE;
+    /** Hierarchy whose shortcuts the last path must be unpacked with; null after A*. */
+    private ContractionHierarchy hierarchy;
+
+    RouteSearch(GraphDB g) {
+        this.g = g;
+        int n = g.size();
+        dist = new double[2][n];
+        parent = new int[2][n];
+        reached = new int[2][n];
+        settled = new int[2][n];
+        queue = new VertexHeap[] {new VertexHeap(n), new VertexHeap(n)};
+    }
+
+    /** The graph this search state belongs to. */
+    GraphDB graph() {
+        return g;
+    }
+
+    /** Number of vertices settled (popped from a queue) by the last search. */
+    int settledCount() {
+        return settledCount;
+    }
+
+    /** Weight of the path found by the last search; infinite if there was none. */
+    double pathLength() {
+        return best;
+    }
+
+    /**
+     * Runs plain A* from s to t under metric. Returns true if t is reachable; the route is
+     * then available from {@link #path()}.
+     */
+    boolean aStar(int s, int t, GraphDB.Metric metric) {
+        reset(metric);
+        VertexHeap pq = queue[FORWARD];
+        reach(FORWARD, s, 0, -1);
+        pq.push(s, g.estimate(metric, s, t));
+        while (!pq.isEmpty()) {
+            int v = pq.pop();
+            settled[FORWARD][v] = epoch;
+            settledCount += 1;
+            if (v == t) {
+                meet = t;
+                best = dist[FORWARD][t];
+                return true;
+            }
+            double dv = dist[FORWARD][v];
+            for (int e = g.edgeStart(v), end = g.edgeEnd(v); e < end; e += 1) {
+                int w = g.edgeTarget(e);
+                double d = dv + g.weight(metric, v, e);
+                if (reached[FORWARD][w] != epoch || d < dist[FORWARD][w]) {
+                    reach(FORWARD, w, d, v);
+                    pq.push(w, d + g.estimate(metric, w, t));
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs bidirectional A* between s and t under metric, using the average of the forward
+     * and backward potentials so that both searches see the same consistent reduced edge
+     * costs. Returns true if t is reachable; the route is then available from {@link #path()}.
+     */
+    boolean bidirectional(int s, int t, GraphDB.Metric metric) {
+        reset(metric);
+        if (s == t) {
+            meet = s;
+            best = 0;
+            reach(FORWARD, s, 0, -1);
+            return true;
+        }
+        reach(FORWARD, s, 0, -1);
+        reach(BACKWARD, t, 0, -1);
+        queue[FORWARD].push(s, potential(s, s, t));
+        queue[BACKWARD].push(t, -potential(t, s, t));
+
+        while (!queue[FORWARD].isEmpty() && !queue[BACKWARD].isEmpty()) {
+            if (queue[FORWARD].minKey() + queue[BACKWARD].minKey() >= best) {
+                break;
+            }
+            int side = queue[FORWARD].size() <= queue[BACKWARD].size() ? FORWARD : BACKWARD;
+            int other = 1 - side;
+            double sign = side == FORWARD ? 1 : -1;
+
+            int v = queue[side].pop();
+            settled[side][v] = epoch;
+            settledCount += 1;
+            double dv = dist[side][v];
+            for (int e = g.edgeStart(v), end = g.edgeEnd(v); e < end; e += 1) {
+                int w = g.edgeTarget(e);
+                if (settled[side][w] == epoch) {
+                    continue;
+                }
+                double d = dv + g.weight(metric, v, e);
+                if (reached[side][w] != epoch || d < dist[side][w]) {
+                    reach(side, w, d, v);
+                    queue[side].push(w, d + sign * potential(w, s, t));
+                    if (reached[other][w] == epoch && d + dist[other][w] < best) {
+                        best = d + dist[other][w];
+                        meet = w;
+                    }
+                }
+            }
+        }
+        return meet >= 0;
+    }
+
+    /**
+     * Runs a contraction hierarchy query between s and t: Dijkstra from both ends, each
+     * following only edges that lead up the hierarchy. Returns true if t is reachable; the
+     * route, with shortcuts unpacked, is then available from {@link #path()}.
+     */
+    boolean hierarchy(ContractionHierarchy ch, int s, int t) {
+        reset(ch.metric());
+        hierarchy = ch;
+        reach(FORWARD, s, 0, -1);
+        reach(BACKWARD, t, 0, -1);
+        queue[FORWARD].push(s, 0);
+        queue[BACKWARD].push(t, 0);
+        if (s == t) {
+            meet = s;
+            best = 0;
+        }
+
+        while (queue[FORWARD].minKey() < best || queue[BACKWARD].minKey() < best) {
+            int side = queue[FORWARD].minKey() <= queue[BACKWARD].minKey() ? FORWARD : BACKWARD;
+            int other = 1 - side;
+            int v = queue[side].pop();
+            settled[side][v] = epoch;
+            settledCount += 1;
+            double dv = dist[side][v];
+            for (int e = ch.upStart(v), end = ch.upEnd(v); e < end; e += 1) {
+                int w = ch.upTarget(e);
+                double d = dv + ch.upWeight(e);
+                if (reached[side][w] != epoch || d < dist[side][w]) {
+                    reach(side, w, d, v);
+                    queue[side].push(w, d);
+                    if (reached[other][w] == epoch && d + dist[other][w] < best) {
+                        best = d + dist[other][w];
+                        meet = w;
+                    }
+                }
+            }
+        }
+        return meet >= 0;
+    }
+
+    /**
+     * Runs Dijkstra under metric from s until every vertex of targets is settled, or
+     * everything reachable from s is. Afterwards {@link #distanceTo(int)} and
+     * {@link #pathTo(int)} answer for each target, so one search serves a whole row of a
+     * distance matrix. Returns the number of distinct targets reached.
+     */
+    int oneToMany(int s, int[] targets, GraphDB.Metric metric) {
+        reset(metric);
+        /* The backward side is unused here; its reached stamps mark the targets. */
+        int remaining = 0;
+        for (int t : targets) {
+            if (reached[BACKWARD][t] != epoch) {
+                reached[BACKWARD][t] = epoch;
+                remaining += 1;
+            }
+        }
+        int distinct = remaining;
+        VertexHeap pq = queue[FORWARD];
+        reach(FORWARD, s, 0, -1);
+        pq.push(s, 0);
+        while (remaining > 0 && !pq.isEmpty()) {
+            int v = pq.pop();
+            settled[FORWARD][v] = epoch;
+            settledCount += 1;
+            if (reached[BACKWARD][v] == epoch) {
+                remaining -= 1;
+            }
+            double dv = dist[FORWARD][v];
+            for (int e = g.edgeStart(v), end = g.edgeEnd(v); e < end; e += 1) {
+                int w = g.edgeTarget(e);
+                double d = dv + g.weight(metric, v, e);
+                if (reached[FORWARD][w] != epoch || d < dist[FORWARD][w]) {
+                    reach(FORWARD, w, d, v);
+                    pq.push(w, d);
+                }
+            }
+        }
+        return distinct - remaining;
+    }
+
+    /**
+     * Weight of the route from the source of the last oneToMany search to t; infinite if
+     * unreached.
+     */
+    double distanceTo(int t) {
+        return settled[FORWARD][t] == epoch ? dist[FORWARD][t] : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * OSM ids of the shortest route from the source of the last oneToMany search to t, or an
+     * empty array if t was not reached.
+     */
+    long[] pathTo(int t) {
+        if (settled[FORWARD][t] != epoch) {
+            return new long[0];
+        }
+        int length = 0;
+        for (int v = t; v >= 0; v = parent[FORWARD][v]) {
+            length += 1;
+        }
+        long[] path = new long[length];
+        for (int v = t; v >= 0; v = parent[FORWARD][v]) {
+            length -= 1;
+            path[length] = g.id(v);
+        }
+        return path;
+    }
+
+    /**
+     * Returns the OSM ids of the route found by the last successful search, from its start
+     * vertex to its end vertex.
+     */
+    LinkedList<Long> path() {
+        LinkedList<Long> path = new LinkedList<>();
+        if (meet < 0) {
+            return path;
+        }
+        if (hierarchy != null) {
+            return unpackedPath();
+        }
+        for (int v = meet; v >= 0; v = parent[FORWARD][v]) {
+            path.addFirst(g.id(v));
+        }
+        if (reached[BACKWARD][meet] == epoch) {
+            for (int v = parent[BACKWARD][meet]; v >= 0; v = parent[BACKWARD][v]) {
+                path.addLast(g.id(v));
+            }
+        }
+        return path;
+    }
+
+    /** Expands each hierarchy edge of the last hierarchy query into the road segments. */
+    private LinkedList<Long> unpackedPath() {
+        /* The forward half is linked from meet back to the start; collect it to walk it
+         * from the start instead. */
+        int[] up = new int[16];
+        int k = 0;
+        for (int v = meet; v >= 0; v = parent[FORWARD][v]) {
+            if (k == up.length) {
+                up = Arrays.copyOf(up, k * 2);
+            }
+            up[k] = v;
+            k += 1;
+        }
+        LinkedList<Long> path = new LinkedList<>();
+        path.add(g.id(up[k - 1]));
+        for (int i = k - 1; i > 0; i -= 1) {
+            hierarchy.unpack(g, up[i], up[i - 1], path);
+        }
+        for (int v = meet; parent[BACKWARD][v] >= 0; v = parent[BACKWARD][v]) {
+            hierarchy.unpack(g, v, parent[BACKWARD][v], path);
+        }
+        return path;
+    }
+
+    /** Forward potential of v: half the difference of its estimated distances to t and s. */
+    private double potential(int v, int s, int t) {
+        return (g.estimate(metric, v, t) - g.estimate(metric, v, s)) / 2;
+    }
+
+    private void reach(int side, int v, double d, int from) {
+        reached[side][v] = epoch;
+        dist[side][v] = d;
+        parent[side][v] = from;
+    }
+
+    private void reset(GraphDB.Metric searchMetric) {
+        metric = searchMetric;
+        epoch += 1;
+        if (epoch == 0) {
+            for (int side = FORWARD; side <= BACKWARD; side += 1) {
+                Arrays.fill(reached[side], 0);
+                Arrays.fill(settled[side], 0);
+            }
+            epoch = 1;
+        }
+        queue[FORWARD].clear();
+        queue[BACKWARD].clear();
+        settledCount = 0;
+        hierarchy = null;
+        meet = -1;
+        best = Double.POSITIVE_INFINITY;
+    }
+}
@@ -0,0 +1,56 @@
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An immutable route: the OSM ids of its vertices in order, plus a version that no other
+ * route shares. Because it never changes after construction, a snapshot can be handed from
+ * the thread that found it to any number of rendering threads without locking, and a
+ * renderer can never see a route half replaced.
+ */
+final class RouteSnapshot {
+    /** The absence of a route; version 0. */
+    static final RouteSnapshot EMPTY = new RouteSnapshot(new long[0], 0);
+
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    private final long[] ids;
+    private final long version;
+
+    private RouteSnapshot(long[] ids, long version) {
+        this.ids = ids;
+        this.version = version;
+    }
+
+    /** Returns a snapshot of route, or EMPTY if it has no vertices. */
+    static RouteSnapshot of(List<Long> route) {
+        if (route.isEmpty()) {
+            return EMPTY;
+        }
+        long[] ids = new long[route.size()];
+        int i = 0;
+        for (long id : route) {
+            ids[i] = id;
+            i += 1;
+        }
+        return new RouteSnapshot(ids, VERSIONS.incrementAndGet());
+    }
+
+    /** Number of vertices on the route. */
+    int size() {
+        return ids.length;
+    }
+
+    boolean isEmpty() {
+        return ids.length == 0;
+    }
+
+    /** OSM id of the i-th vertex of the route. */
+    long id(int i) {
+        return ids[i];
+    }
+
+    /** Identifies this route among all routes found by the server; 0 for EMPTY. */
+    long version() {
+        return version;
+    }
+}
@@ -0,0 +1,236 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+
+/**
+ * All the tile images of the map packed into one file, so that serving a tile is a lookup in
+ * an index and a slice of one memory-mapped buffer instead of an open, a stat and a read of
+ * one of thousands of small files, and a deploy copies a single file.
+ *
+ * Layout (big-endian):
+ * <pre>
+ *   int    MAGIC, int VERSION, int maxDepth
+ *   index: for each depth d from 0 to maxDepth, row y, column x (2^d x 2^d tiles per depth):
+ *          long offset of the tile's bytes from the start of the file, int length (0 if the
+ *          tile is missing)
+ *   the tiles' PNG bytes, back to back
+ * </pre>
+ * The index entry of a tile is found arithmetically: depths before d hold (4^d - 1) / 3
+ * tiles. The whole file is mapped at once, which limits it to 2 GB, and so maxDepth to
+ * MAX_DEPTH, the deepest whose index fits.
+ */
+class TileArchive {
+    private static final int MAGIC = 0x424d5441;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 3 * 4;
+    private static final int ENTRY_BYTES = 8 + 4;
+    /** Deepest maxDepth whose index fits in a 2 GB mapping; depth 14 needs 4 GB of index. */
+    static final int MAX_DEPTH = 13;
+
+    private final MappedByteBuffer buf;
+    private final int maxDepth;
+
+    private TileArchive(MappedByteBuffer buf, int maxDepth) {
+        this.buf = buf;
+        this.maxDepth = maxDepth;
+    }
+
+    /** Number of tiles of depths 0 through d - 1, for d up to MAX_DEPTH + 1. */
+    private static long tilesBefore(int d) {
+        return ((1L << (2 * d)) - 1) / 3;
+    }
+
+    /** Bytes from the start of the file to the end of the index of depths 0 to maxDepth. */
+    private static long indexEnd(int maxDepth) {
+        return HEADER_BYTES + tilesBefore(maxDepth + 1) * ENTRY_BYTES;
+    }
+
+    /**
+     * Maps the archive in file.
+     * @throws IOException if it cannot be read, is not a tile archive or is over 2 GB.
+     */
+    static TileArchive open(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r");
+             FileChannel channel = in.getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large to map");
+            }
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.limit() < HEADER_BYTES || buf.getInt(0) != MAGIC
+                    || buf.getInt(4) != VERSION) {
+                throw new IOException(file + " is not a tile archive");
+            }
+            int maxDepth = buf.getInt(8);
+            if (maxDepth < 0 || maxDepth > MAX_DEPTH) {
+                throw new IOException(file + " has an unsupported depth " + maxDepth);
+            }
+            if (buf.limit() < indexEnd(maxDepth)) {
+                throw new IOException(file + " has a truncated index");
+            }
+            return new TileArchive(buf, maxDepth);
+        }
+    }
+
+    int maxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Returns the PNG bytes of the tile at column x and row y of depth d as a read-only view
+     * of the mapping, or null if the archive has no such tile.
+     */
+    ByteBuffer tile(int depth, int x, int y) {
+        int side = 1 << depth;
+        if (depth < 0 || depth > maxDepth || x < 0 || x >= side || y < 0 || y >= side) {
+            return null;
+        }
+        /* Below indexEnd(maxDepth), which open checked is within the mapping. */
+        int entry = (int) (HEADER_BYTES
+                + (tilesBefore(depth) + (long) y * side + x) * ENTRY_BYTES);
+        long offset = buf.getLong(entry);
+        int length = buf.getInt(entry + 8);
+        if (length == 0 || offset < 0 || offset + length > buf.limit()) {
+            return null;
+        }
+        ByteBuffer view = buf.asReadOnlyBuffer();
+        view.position((int) offset);
+        view.limit((int) offset + length);
+        return view.slice();
+    }
+
+    /** Returns the tile as tile does, as a stream; null if the archive has no such tile. */
+    InputStream open(int depth, int x, int y) {
+        ByteBuffer bytes = tile(depth, x, y);
+        return bytes == null ? null : new BufferInputStream(bytes);
+    }
+
+    /**
+     * Packs the tiles of depths 0 through maxDepth named by rasterer (the tile files under
+     * its image root) into the archive file. Tiles without a file are recorded as missing.
+     * @return The number of tiles packed.
+     */
+    static int pack(Rasterer rasterer, int maxDepth, File archive) throws IOException {
+        if (maxDepth < 0 || maxDepth > MAX_DEPTH) {
+            throw new IllegalArgumentException("maxDepth must be 0 to " + MAX_DEPTH);
+        }
+        int tiles = (int) tilesBefore(maxDepth + 1);
+        long[] offsets = new long[tiles];
+        int[] lengths = new int[tiles];
+        long offset = indexEnd(maxDepth);
+        for (int d = 0, i = 0; d <= maxDepth; d += 1) {
+            int side = 1 << d;
+            for (int y = 0; y < side; y += 1) {
+                for (int x = 0; x < side; x += 1, i += 1) {
+                    File f = new File(rasterer.tileName(d, x, y));
+                    if (f.isFile()) {
+                        offsets[i] = offset;
+                        lengths[i] = (int) f.length();
+                        offset += lengths[i];
+                    }
+                }
+            }
+        }
+
+        int packed = 0;
+        File tmp = new File(archive.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(maxDepth);
+            for (int i = 0; i < tiles; i += 1) {
+                out.writeLong(offsets[i]);
+                out.writeInt(lengths[i]);
+            }
+            for (int d = 0, i = 0; d <= maxDepth; d += 1) {
+                int side = 1 << d;
+                for (int y = 0; y < side; y += 1) {
+                    for (int x = 0; x < side; x += 1, i += 1) {
+                        if (lengths[i] == 0) {
+                            continue;
+                        }
+                        byte[] png = Files.readAllBytes(new File(rasterer.tileName(d, x, y))
+                                .toPath());
+                        if (png.length != lengths[i]) {
+                            throw new IOException(rasterer.tileName(d, x, y)
+                                    + " changed while packing");
+                        }
+                        out.write(png);
+                        packed += 1;
+                    }
+                }
+            }
+        }
+        if (!tmp.renameTo(archive)) {
+            archive.delete();
+            if (!tmp.renameTo(archive)) {
+                throw new IOException("Could not move " + tmp + " to " + archive);
+            }
+        }
+        return packed;
+    }
+
+    /**
+     * Packing tool: packs the tiles under the image root given as the first argument (default
+     * img/) into the archive named by the second (default tiles.bin).
+     */
+    public static void main(String[] args) throws IOException {
+        String imgRoot = args.length > 0 ? args[0] : "img/";
+        if (!imgRoot.endsWith("/")) {
+            imgRoot += "/";
+        }
+        File archive = new File(args.length > 1 ? args[1] : "tiles.bin");
+        long start = System.currentTimeMillis();
+        int packed = pack(new Rasterer(imgRoot), Rasterer.MAX_DEPTH, archive);
+        System.out.println("Packed " + packed + " tiles from " + imgRoot + " into " + archive
+                + " (" + archive.length() + " bytes) in "
+                + (System.currentTimeMillis() - start) + " ms.");
+    }
+
+    /** An InputStream over the remaining bytes of a buffer, without copying them. */
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer bytes;
+
+        BufferInputStream(ByteBuffer bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read() {
+            return bytes.hasRemaining() ? bytes.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!bytes.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, bytes.remaining());
+            bytes.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, bytes.remaining()));
+            bytes.position(bytes.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return bytes.remaining();
+        }
+    }
+}
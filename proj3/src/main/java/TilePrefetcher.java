@@ -0,0 +1,137 @@
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Warms the tile cache around the last viewport rastered, since panning and zooming almost
+ * always ask for its neighbours next: first the ring of tiles just outside the viewport's
+ * grid, then the tiles covering the viewport one depth up, then one depth down, up to a budget
+ * of tiles per viewport. Tiles are loaded on low-priority daemon threads through a bounded
+ * queue; when it is full the oldest queued tiles are dropped, so a user who keeps moving only
+ * warms the neighbourhood of where they are now.
+ */
+class TilePrefetcher {
+    private final Rasterer rasterer;
+    private final LruCache<String, BufferedImage> cache;
+    private final Function<String, BufferedImage> loader;
+    private final int budget;
+    private final ThreadPoolExecutor pool;
+
+    private final LongAdder loaded = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * @param rasterer Names the tiles.
+     * @param cache The cache to warm, keyed by tile name.
+     * @param loader Loads a tile by name; a null result is not cached.
+     * @param budget Most tiles queued for one viewport, and most queued at all.
+     * @param threads Number of loading threads.
+     */
+    TilePrefetcher(Rasterer rasterer, LruCache<String, BufferedImage> cache,
+                   Function<String, BufferedImage> loader, int budget, int threads) {
+        this.rasterer = rasterer;
+        this.cache = cache;
+        this.loader = loader;
+        this.budget = budget;
+        this.pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, budget)), runnable -> {
+                    Thread t = new Thread(runnable, "tile-prefetcher");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }, (runnable, executor) -> {
+                    if (executor.isShutdown()) {
+                        dropped.increment();
+                        return;
+                    }
+                    /* Make room by dropping the oldest queued tile. Going to the queue
+                     * directly, rather than through execute, cannot land back here; the loop
+                     * only repeats if other threads refilled the queue in between. */
+                    BlockingQueue<Runnable> queue = executor.getQueue();
+                    while (!queue.offer(runnable)) {
+                        if (queue.poll() != null) {
+                            dropped.increment();
+                        }
+                    }
+                    /* In case the loading threads timed out meanwhile. */
+                    executor.prestartCoreThread();
+                });
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues the uncached tiles around the viewport whose grid spans columns xmin to xmax and
+     * rows ymin to ymax of depth, and returns immediately.
+     */
+    void prefetch(int depth, int xmin, int ymin, int xmax, int ymax) {
+        for (String name : around(depth, xmin, ymin, xmax, ymax, budget)) {
+            if (cache.contains(name)) {
+                continue;
+            }
+            pool.execute(() -> {
+                if (!cache.contains(name)) {
+                    BufferedImage tile = loader.apply(name);
+                    if (tile != null) {
+                        cache.put(name, tile);
+                        loaded.increment();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Names of the tiles around a viewport's grid, nearest first and at most limit of them:
+     * the ring just outside the grid, then the grid's tiles one depth up and one depth down,
+     * all clamped to the map and to depths 1 through Rasterer.MAX_DEPTH.
+     */
+    List<String> around(int depth, int xmin, int ymin, int xmax, int ymax, int limit) {
+        List<String> names = new ArrayList<>();
+        int side = 1 << depth;
+        for (int y = ymin - 1; y <= ymax + 1; y += 1) {
+            for (int x = xmin - 1; x <= xmax + 1; x += 1) {
+                boolean inGrid = x >= xmin && x <= xmax && y >= ymin && y <= ymax;
+                if (!inGrid && x >= 0 && x < side && y >= 0 && y < side) {
+                    names.add(rasterer.tileName(depth, x, y));
+                }
+            }
+        }
+        if (depth > 1) {
+            addAll(names, depth - 1, xmin >> 1, ymin >> 1, xmax >> 1, ymax >> 1);
+        }
+        if (depth < Rasterer.MAX_DEPTH) {
+            addAll(names, depth + 1, xmin << 1, ymin << 1, (xmax << 1) + 1, (ymax << 1) + 1);
+        }
+        return names.size() > limit ? names.subList(0, limit) : names;
+    }
+
+    private void addAll(List<String> names, int depth, int xmin, int ymin, int xmax,
+                        int ymax) {
+        for (int y = ymin; y <= ymax; y += 1) {
+            for (int x = xmin; x <= xmax; x += 1) {
+                names.add(rasterer.tileName(depth, x, y));
+            }
+        }
+    }
+
+    /** Number of tiles waiting to be loaded. */
+    int queued() {
+        return pool.getQueue().size();
+    }
+
+    /** Number of tiles loaded into the cache. */
+    long loaded() {
+        return loaded.sum();
+    }
+
+    /** Number of queued tiles dropped to make room for newer ones. */
+    long dropped() {
+        return dropped.sum();
+    }
+}
@@ -0,0 +1,112 @@
+import java.util.Arrays;
+
+/**
+ * A binary min-heap of dense vertex indices keyed by double priorities, with decrease-key.
+ * All storage is allocated once for a fixed number of vertices; {@link #clear()} empties the
+ * heap in constant time by advancing an epoch instead of resetting the position table, so the
+ * same heap can serve any number of searches without allocating.
+ */
+class VertexHeap {
+    private final int[] heap;
+    private final double[] keys;
+    /** Position of each vertex in heap, valid only while stamp[v] == epoch; -1 once popped. */
+    private final int[] position;
+    private final int[] stamp;
+    private int epoch = 1;
+    private int size;
+
+    /** Creates an empty heap for the vertices [0, capacity). */
+    VertexHeap(int capacity) {
+        heap = new int[capacity];
+        keys = new double[capacity];
+        position = new int[capacity];
+        stamp = new int[capacity];
+    }
+
+    /** Removes every vertex from the heap. */
+    void clear() {
+        size = 0;
+        epoch += 1;
+        if (epoch == 0) {
+            Arrays.fill(stamp, 0);
+            epoch = 1;
+        }
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** Smallest key in the heap; positive infinity if the heap is empty. */
+    double minKey() {
+        return size == 0 ? Double.POSITIVE_INFINITY : keys[0];
+    }
+
+    /**
+     * Inserts v with the given key, or lowers the key of v if it is already queued with a
+     * larger one. Vertices that have been popped since the last clear are inserted again.
+     */
+    void push(int v, double key) {
+        int i;
+        if (stamp[v] == epoch && position[v] >= 0) {
+            i = position[v];
+            if (key >= keys[i]) {
+                return;
+            }
+        } else {
+            stamp[v] = epoch;
+            i = size;
+            size += 1;
+        }
+        siftUp(i, v, key);
+    }
+
+    /** Removes and returns the vertex with the smallest key. */
+    int pop() {
+        int min = heap[0];
+        position[min] = -1;
+        size -= 1;
+        if (size > 0) {
+            siftDown(0, heap[size], keys[size]);
+        }
+        return min;
+    }
+
+    private void siftUp(int i, int v, double key) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (keys[parent] <= key) {
+                break;
+            }
+            place(i, heap[parent], keys[parent]);
+            i = parent;
+        }
+        place(i, v, key);
+    }
+
+    private void siftDown(int i, int v, double key) {
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && keys[child + 1] < keys[child]) {
+                child += 1;
+            }
+            if (key <= keys[child]) {
+                break;
+            }
+            place(i, heap[child], keys[child]);
+            i = child;
+        }
+        place(i, v, key);
+    }
+
+    private void place(int i, int v, double key) {
+        heap[i] = v;
+        keys[i] = key;
+        position[v] = i;
+    }
+}
@@ -110,13 +110,12 @@ $(function() {
         $.get({
             async: true,
             url: raster_server,
-            data: params,
+            data: $.extend({binary: true}, params),
             success: function(data) {
                 if (data.query_success) {
                     $loadingStatus.hide();
-                    map.src = 'data:image/png;base64,' + data.b64_encoded_image_data;
-                    console.log('Updating map with image length: ' + 
-                                data.b64_encoded_image_data.length);
+                    map.src = host + data.image_url;
+                    console.log('Updating map with image ' + data.image_url);
                     ullon_bound = data.raster_ul_lon;
                     ullat_bound = data.raster_ul_lat;
                     lrlon_bound = data.raster_lr_lon;
@@ -0,0 +1,96 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a Bulkhead runs at most its limit at a time, queues at most its queue limit and
+ * turns the rest away.
+ */
+public class TestBulkhead {
+    @Test
+    public void testLimits() throws Exception {
+        Bulkhead bulkhead = new Bulkhead(2, 1, 10000);
+        assertTrue(bulkhead.enter());
+        assertTrue(bulkhead.enter());
+        assertEquals(2, bulkhead.active());
+
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> waiting = pool.submit(bulkhead::enter);
+            while (bulkhead.queued() == 0) {
+                Thread.sleep(1);
+            }
+            /* The queue is full, so this is turned away without waiting. */
+            long start = System.nanoTime();
+            assertFalse(bulkhead.enter());
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+            assertEquals(1, bulkhead.rejected());
+
+            bulkhead.exit();
+            assertTrue(waiting.get(5, TimeUnit.SECONDS));
+            assertEquals(0, bulkhead.queued());
+            assertEquals(2, bulkhead.active());
+            assertEquals(3, bulkhead.admitted());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testWaitTimesOut() {
+        Bulkhead bulkhead = new Bulkhead(1, 4, 20);
+        assertTrue(bulkhead.enter());
+        assertFalse(bulkhead.enter());
+        assertEquals(0, bulkhead.queued());
+        bulkhead.exit();
+        assertTrue(bulkhead.enter());
+        assertEquals(1, bulkhead.rejected());
+    }
+
+    @Test
+    public void testNeverExceedsLimit() throws Exception {
+        Bulkhead bulkhead = new Bulkhead(3, 100, 10000);
+        int threads = 16;
+        /* Counted by the callers themselves: active() is derived from the permits, so it
+         * could not show the limit being exceeded. */
+        AtomicInteger inside = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t += 1) {
+                workers.add(pool.submit(() -> {
+                    for (int i = 0; i < 200; i += 1) {
+                        assertTrue(bulkhead.enter());
+                        peak.accumulateAndGet(inside.incrementAndGet(), Math::max);
+                        Thread.yield();
+                        inside.decrementAndGet();
+                        bulkhead.exit();
+                    }
+                }));
+            }
+            /* get rethrows a worker's failed assertion here, on the test thread. */
+            for (Future<?> worker : workers) {
+                worker.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertTrue(peak.get() + " inside at once", peak.get() <= 3);
+        assertEquals(threads * 200, bulkhead.admitted());
+        assertEquals(0, bulkhead.rejected());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadLimits() {
+        new Bulkhead(0, 1, 1);
+    }
+}
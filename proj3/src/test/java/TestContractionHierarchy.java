@@ -0,0 +1,121 @@
+import org.junit.Test;
+
+import java.io.File;
+import java.util.LinkedList;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks contraction hierarchy routes against A* on a small jittered grid of streets.
+ */
+public class TestContractionHierarchy {
+    private static final int SIDE = 20;
+    private static final int QUERIES = 100;
+
+    /**
+     * Returns OSM XML for a SIDE x SIDE grid of jittered intersections joined by roads: named
+     * residential rows, and primary columns of which every third has a 25 mph limit.
+     */
+    static String gridOsm(Random random) {
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<osm>\n");
+        for (int r = 0; r < SIDE; r += 1) {
+            for (int c = 0; c < SIDE; c += 1) {
+                double lat = 37.88 - r * 0.002 + random.nextDouble() * 0.001;
+                double lon = -122.29 + c * 0.002 + random.nextDouble() * 0.001;
+                sb.append("  <node id=\"").append(100 + r * SIDE + c).append("\" lat=\"")
+                        .append(lat).append("\" lon=\"").append(lon).append("\"/>\n");
+            }
+        }
+        for (int i = 0; i < SIDE; i += 1) {
+            sb.append("  <way id=\"").append(i).append("\">\n");
+            for (int c = 0; c < SIDE; c += 1) {
+                sb.append("    <nd ref=\"").append(100 + i * SIDE + c).append("\"/>\n");
+            }
+            sb.append("    <tag k=\"highway\" v=\"residential\"/>\n");
+            sb.append("    <tag k=\"name\" v=\"Row ").append(i).append("\"/>\n  </way>\n");
+            sb.append("  <way id=\"").append(SIDE + i).append("\">\n");
+            for (int r = 0; r < SIDE; r += 1) {
+                sb.append("    <nd ref=\"").append(100 + r * SIDE + i).append("\"/>\n");
+            }
+            if (i % 3 == 0) {
+                sb.append("    <tag k=\"maxspeed\" v=\"25 mph\"/>\n");
+            }
+            sb.append("    <tag k=\"highway\" v=\"primary\"/>\n  </way>\n");
+        }
+        return sb.append("</osm>\n").toString();
+    }
+
+    /** Weight of route under metric, checking that it only follows edges. */
+    static double length(GraphDB g, LinkedList<Long> route, GraphDB.Metric metric) {
+        double length = 0;
+        Long prev = null;
+        for (Long v : route) {
+            if (prev != null) {
+                int e = g.edgeSlot(g.index(prev), g.index(v));
+                assertTrue("Route jumps from " + prev + " to " + v, e >= 0);
+                length += g.weight(metric, g.index(prev), e);
+            }
+            prev = v;
+        }
+        return length;
+    }
+
+    private static void checkMatchesAStar(GraphDB.Metric metric) throws Exception {
+        Random random = new Random(61);
+        File osm = TestGraphSnapshot.writeTempFile(".osm", gridOsm(random));
+        GraphDB g = new GraphDB(osm.getPath());
+        ContractionHierarchy ch = ContractionHierarchy.build(g, metric);
+
+        for (int q = 0; q < QUERIES; q += 1) {
+            double stlon = -122.29 + random.nextDouble() * 0.04;
+            double stlat = 37.84 + random.nextDouble() * 0.04;
+            double destlon = -122.29 + random.nextDouble() * 0.04;
+            double destlat = 37.84 + random.nextDouble() * 0.04;
+            LinkedList<Long> expected = Router.shortestPathAStar(g, stlon, stlat, destlon,
+                    destlat, metric);
+            LinkedList<Long> bidirectional = Router.shortestPath(g, stlon, stlat, destlon,
+                    destlat, metric);
+            g.useHierarchy(metric, ch);
+            LinkedList<Long> actual = Router.shortestPath(g, stlon, stlat, destlon, destlat,
+                    metric);
+            g.useHierarchy(metric, null);
+            assertEquals(expected.getFirst(), actual.getFirst());
+            assertEquals(expected.getLast(), actual.getLast());
+            assertEquals(length(g, expected, metric), length(g, actual, metric), 1e-9);
+            assertEquals(length(g, expected, metric), length(g, bidirectional, metric), 1e-9);
+        }
+    }
+
+    @Test
+    public void testMatchesAStar() throws Exception {
+        checkMatchesAStar(GraphDB.Metric.DISTANCE);
+    }
+
+    @Test
+    public void testMatchesAStarByTime() throws Exception {
+        checkMatchesAStar(GraphDB.Metric.TIME);
+    }
+
+    @Test
+    public void testPersistence() throws Exception {
+        File osm = TestGraphSnapshot.writeTempFile(".osm", gridOsm(new Random(7)));
+        GraphDB.Metric metric = GraphDB.Metric.TIME;
+        File file = new File(ContractionHierarchy.hierarchyPath(osm.getPath(), metric));
+        file.deleteOnExit();
+        GraphDB g = new GraphDB(osm.getPath());
+
+        ContractionHierarchy built = ContractionHierarchy.open(g, osm.getPath(), metric);
+        assertTrue(file.isFile());
+        assertNull(ContractionHierarchy.read(file, osm, g, GraphDB.Metric.DISTANCE));
+        ContractionHierarchy loaded = ContractionHierarchy.read(file, osm, g, metric);
+        assertNotNull(loaded);
+        assertEquals(built.edgeCount(), loaded.edgeCount());
+        for (int v = 0; v < g.size(); v += 1) {
+            assertEquals(built.upStart(v), loaded.upStart(v));
+        }
+
+        assertTrue(osm.setLastModified(osm.lastModified() - 60000));
+        assertNull(ContractionHierarchy.read(file, osm, g, metric));
+    }
+}
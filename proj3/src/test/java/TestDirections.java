@@ -0,0 +1,121 @@
+import org.junit.Test;
+
+import java.io.File;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the street table, travel-time routing and the maneuvers built from a route.
+ */
+public class TestDirections {
+    /**
+     * East along Bancroft Way, left up Telegraph Avenue and right along Durant Avenue, plus a
+     * living street that cuts the corner: shorter, but four times slower.
+     */
+    private static final String STREETS_OSM = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<osm version=\"0.6\">\n"
+            + "  <node id=\"1\" lat=\"37.870\" lon=\"-122.260\"/>\n"
+            + "  <node id=\"2\" lat=\"37.870\" lon=\"-122.259\"/>\n"
+            + "  <node id=\"3\" lat=\"37.870\" lon=\"-122.258\"/>\n"
+            + "  <node id=\"4\" lat=\"37.871\" lon=\"-122.258\"/>\n"
+            + "  <node id=\"5\" lat=\"37.871\" lon=\"-122.257\"/>\n"
+            + "  <node id=\"6\" lat=\"37.8705\" lon=\"-122.2585\"/>\n"
+            + "  <way id=\"10\"><nd ref=\"1\"/><nd ref=\"2\"/><nd ref=\"3\"/>\n"
+            + "    <tag k=\"highway\" v=\"residential\"/><tag k=\"name\" v=\"Bancroft Way\"/>\n"
+            + "  </way>\n"
+            + "  <way id=\"11\"><nd ref=\"3\"/><nd ref=\"4\"/>\n"
+            + "    <tag k=\"highway\" v=\"residential\"/>\n"
+            + "    <tag k=\"name\" v=\"Telegraph Avenue\"/><tag k=\"maxspeed\" v=\"25 mph\"/>\n"
+            + "  </way>\n"
+            + "  <way id=\"12\"><nd ref=\"4\"/><nd ref=\"5\"/>\n"
+            + "    <tag k=\"highway\" v=\"residential\"/><tag k=\"name\" v=\"Durant Avenue\"/>\n"
+            + "  </way>\n"
+            + "  <way id=\"13\"><nd ref=\"1\"/><nd ref=\"6\"/><nd ref=\"5\"/>\n"
+            + "    <tag k=\"highway\" v=\"living_street\"/>\n"
+            + "  </way>\n"
+            + "</osm>\n";
+
+    private static GraphDB streets() throws Exception {
+        File osm = TestGraphSnapshot.writeTempFile(".osm", STREETS_OSM);
+        return new GraphDB(osm.getPath());
+    }
+
+    @Test
+    public void testSpeedOf() {
+        assertEquals(40.2336, GraphBuildingHandler.speedOf("primary", "25 mph"), 1e-9);
+        assertEquals(50, GraphBuildingHandler.speedOf("motorway", "50"), 0);
+        assertEquals(40, GraphBuildingHandler.speedOf("residential", "none"), 0);
+        assertEquals(10, GraphBuildingHandler.speedOf("living_street", null), 0);
+    }
+
+    @Test
+    public void testStreetTable() throws Exception {
+        GraphDB g = streets();
+        assertEquals(4, g.streetCount());
+        int e = g.edgeSlot(g.index(3), g.index(4));
+        assertEquals("Telegraph Avenue", g.streetName(g.edgeStreet(e)));
+        assertEquals(40.2336, g.streetSpeed(g.edgeStreet(e)), 1e-9);
+        assertEquals(e, g.edgeSlot(g.index(3), g.index(4)));
+        assertEquals(-1, g.edgeSlot(g.index(2), g.index(4)));
+        int back = g.edgeSlot(g.index(4), g.index(3));
+        assertEquals(g.edgeStreet(e), g.edgeStreet(back));
+        assertEquals("", g.streetName(g.edgeStreet(g.edgeSlot(g.index(1), g.index(6)))));
+    }
+
+    @Test
+    public void testFastestRoute() throws Exception {
+        GraphDB g = streets();
+        LinkedList<Long> shortest = Router.shortestPath(g, -122.260, 37.870, -122.257, 37.871);
+        assertArrayEquals(new Object[] {1L, 6L, 5L}, shortest.toArray());
+        LinkedList<Long> fastest = Router.shortestPath(g, -122.260, 37.870, -122.257, 37.871,
+                GraphDB.Metric.TIME);
+        assertArrayEquals(new Object[] {1L, 2L, 3L, 4L, 5L}, fastest.toArray());
+        g.useHierarchy(GraphDB.Metric.TIME,
+                ContractionHierarchy.build(g, GraphDB.Metric.TIME));
+        assertEquals(fastest, Router.shortestPath(g, -122.260, 37.870, -122.257, 37.871,
+                GraphDB.Metric.TIME));
+    }
+
+    @Test
+    public void testManeuvers() throws Exception {
+        GraphDB g = streets();
+        List<Directions.Maneuver> maneuvers = Directions.of(g,
+                RouteSnapshot.of(Router.shortestPath(g, -122.260, 37.870, -122.257, 37.871,
+                        GraphDB.Metric.TIME)));
+        assertEquals(3, maneuvers.size());
+
+        Directions.Maneuver start = maneuvers.get(0);
+        assertEquals(Directions.Turn.START, start.turn());
+        assertEquals("Bancroft Way", start.street());
+        assertEquals(-122.260, start.lon(), 0);
+        double meters = 0.002 * Math.cos(Math.toRadians(37.8705)) * GraphDB.METERS_PER_DEGREE;
+        assertEquals(meters, start.meters(), 1e-6);
+        assertEquals(meters / (40 / 3.6), start.seconds(), 1e-6);
+        assertEquals("Start on Bancroft Way for 180 m.", start.toString());
+
+        assertEquals(Directions.Turn.LEFT, maneuvers.get(1).turn());
+        assertEquals("Telegraph Avenue", maneuvers.get(1).street());
+        assertEquals(37.870, maneuvers.get(1).lat(), 0);
+        assertEquals(Directions.Turn.RIGHT, maneuvers.get(2).turn());
+        assertEquals("Durant Avenue", maneuvers.get(2).street());
+
+        List<Directions.Maneuver> corner = Directions.of(g,
+                RouteSnapshot.of(Router.shortestPath(g, -122.260, 37.870, -122.257, 37.871)));
+        assertEquals(1, corner.size());
+        assertEquals(Directions.UNNAMED, corner.get(0).street());
+        assertTrue(Directions.of(g, RouteSnapshot.EMPTY).isEmpty());
+    }
+
+    @Test
+    public void testTurns() {
+        assertEquals(Directions.Turn.STRAIGHT, Directions.turn(350, 5));
+        assertEquals(Directions.Turn.SLIGHT_RIGHT, Directions.turn(0, 20));
+        assertEquals(Directions.Turn.SLIGHT_LEFT, Directions.turn(10, 345));
+        assertEquals(Directions.Turn.LEFT, Directions.turn(90, 0));
+        assertEquals(Directions.Turn.RIGHT, Directions.turn(270, 0));
+        assertEquals(Directions.Turn.SHARP_RIGHT, Directions.turn(0, 150));
+        assertEquals(Directions.Turn.SHARP_LEFT, Directions.turn(180, 20));
+    }
+}
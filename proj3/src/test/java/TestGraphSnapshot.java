@@ -0,0 +1,89 @@
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a graph loaded from its binary snapshot is identical to the one parsed from XML.
+ */
+public class TestGraphSnapshot {
+    /** A tiny map: a road from 1 to 3 through 2, a footpath from 3 to 4, and a named cafe. */
+    static final String TINY_OSM = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<osm version=\"0.6\">\n"
+            + "  <node id=\"3\" lat=\"37.87\" lon=\"-122.26\"/>\n"
+            + "  <node id=\"1\" lat=\"37.86\" lon=\"-122.25\"/>\n"
+            + "  <node id=\"2\" lat=\"37.865\" lon=\"-122.255\">\n"
+            + "    <tag k=\"name\" v=\"Caf\u00e9 &amp; Bar\"/>\n"
+            + "  </node>\n"
+            + "  <node id=\"4\" lat=\"37.88\" lon=\"-122.27\"/>\n"
+            + "  <way id=\"10\">\n"
+            + "    <nd ref=\"1\"/>\n"
+            + "    <nd ref=\"2\"/>\n"
+            + "    <nd ref=\"3\"/>\n"
+            + "    <tag k=\"highway\" v=\"residential\"/>\n"
+            + "    <tag k=\"name\" v=\"Bancroft Way\"/>\n"
+            + "  </way>\n"
+            + "  <way id=\"11\">\n"
+            + "    <nd ref=\"3\"/>\n"
+            + "    <nd ref=\"4\"/>\n"
+            + "    <tag k=\"highway\" v=\"footway\"/>\n"
+            + "  </way>\n"
+            + "</osm>\n";
+
+    /** Writes contents to a new temporary file that is deleted when the JVM exits. */
+    static File writeTempFile(String suffix, String contents) throws IOException {
+        File f = File.createTempFile("bearmaps", suffix);
+        f.deleteOnExit();
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.UTF_8)) {
+            w.write(contents);
+        }
+        return f;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        File osm = writeTempFile(".osm", TINY_OSM);
+        File snapshot = new File(GraphSnapshot.snapshotPath(osm.getPath()));
+        snapshot.deleteOnExit();
+
+        GraphDB parsed = GraphDB.open(osm.getPath());
+        assertTrue(GraphSnapshot.isFresh(snapshot, osm));
+        GraphDB loaded = GraphDB.open(osm.getPath());
+
+        assertEquals(3, loaded.size());
+        assertEquals(parsed.size(), loaded.size());
+        for (long v : parsed.vertices()) {
+            assertEquals(parsed.lon(v), loaded.lon(v), 0);
+            assertEquals(parsed.lat(v), loaded.lat(v), 0);
+            Set<Long> expected = new HashSet<>();
+            Set<Long> actual = new HashSet<>();
+            parsed.adjacent(v).forEach(expected::add);
+            loaded.adjacent(v).forEach(actual::add);
+            assertEquals(expected, actual);
+        }
+        assertEquals(1, loaded.locationCount());
+        assertEquals("Caf\u00e9 & Bar", loaded.locationName(0));
+        assertEquals(2L, loaded.locationId(0));
+        TestOsmReader.assertSameGraph(parsed, loaded);
+        assertEquals("Bancroft Way", loaded.streetName(loaded.edgeStreet(0)));
+    }
+
+    @Test
+    public void testStaleSnapshotIsIgnored() throws Exception {
+        File osm = writeTempFile(".osm", TINY_OSM);
+        File snapshot = new File(GraphSnapshot.snapshotPath(osm.getPath()));
+        snapshot.deleteOnExit();
+
+        GraphDB.open(osm.getPath());
+        assertTrue(osm.setLastModified(osm.lastModified() - 60000));
+        assertFalse(GraphSnapshot.isFresh(snapshot, osm));
+    }
+}
@@ -0,0 +1,95 @@
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares KdTree queries against brute force over random points.
+ */
+public class TestKdTree {
+    private static final int N = 2000;
+    private static final int QUERIES = 500;
+
+    private final Random random = new Random(61);
+    private final double[] xs = new double[N];
+    private final double[] ys = new double[N];
+
+    public TestKdTree() {
+        for (int i = 0; i < N; i += 1) {
+            xs[i] = -122.3 + random.nextDouble() * 0.1;
+            /* Coarse latitudes so that there are many ties on one axis. */
+            ys[i] = 37.8 + random.nextInt(50) * 0.001;
+        }
+    }
+
+    private double distance(int i, double x, double y) {
+        return Math.hypot(xs[i] - x, ys[i] - y);
+    }
+
+    private Integer[] byDistance(double x, double y) {
+        Integer[] all = new Integer[N];
+        for (int i = 0; i < N; i += 1) {
+            all[i] = i;
+        }
+        Arrays.sort(all, (a, b) -> Double.compare(distance(a, x, y), distance(b, x, y)));
+        return all;
+    }
+
+    @Test
+    public void testNearest() {
+        KdTree tree = new KdTree(xs, ys);
+        for (int q = 0; q < QUERIES; q += 1) {
+            double x = -122.32 + random.nextDouble() * 0.14;
+            double y = 37.78 + random.nextDouble() * 0.09;
+            int expected = byDistance(x, y)[0];
+            assertEquals(distance(expected, x, y), distance(tree.nearest(x, y), x, y), 0);
+        }
+    }
+
+    @Test
+    public void testKNearest() {
+        KdTree tree = new KdTree(xs, ys);
+        for (int q = 0; q < QUERIES / 10; q += 1) {
+            double x = -122.3 + random.nextDouble() * 0.1;
+            double y = 37.8 + random.nextDouble() * 0.05;
+            Integer[] expected = byDistance(x, y);
+            int[] actual = tree.nearest(x, y, 7);
+            assertEquals(7, actual.length);
+            for (int i = 0; i < actual.length; i += 1) {
+                assertEquals(distance(expected[i], x, y), distance(actual[i], x, y), 0);
+            }
+        }
+        assertEquals(N, tree.nearest(-122.25, 37.82, N + 5).length);
+    }
+
+    @Test
+    public void testWithin() {
+        KdTree tree = new KdTree(xs, ys);
+        for (int q = 0; q < QUERIES / 10; q += 1) {
+            double x = -122.3 + random.nextDouble() * 0.1;
+            double y = 37.8 + random.nextDouble() * 0.05;
+            double r = random.nextDouble() * 0.01;
+            int expected = 0;
+            for (int i = 0; i < N; i += 1) {
+                if (distance(i, x, y) <= r) {
+                    expected += 1;
+                }
+            }
+            int[] actual = tree.within(x, y, r);
+            assertEquals(expected, actual.length);
+            for (int i = 1; i < actual.length; i += 1) {
+                assertTrue(distance(actual[i - 1], x, y) <= distance(actual[i], x, y));
+            }
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        KdTree tree = new KdTree(new double[0], new double[0]);
+        assertEquals(-1, tree.nearest(0, 0));
+        assertEquals(0, tree.nearest(0, 0, 3).length);
+        assertEquals(0, tree.within(0, 0, 1).length);
+    }
+}
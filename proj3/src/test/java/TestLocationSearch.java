@@ -0,0 +1,42 @@
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks GraphDB's index from cleaned names to named locations.
+ */
+public class TestLocationSearch {
+    private static final String OSM = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<osm version=\"0.6\">\n"
+            + "  <node id=\"9\" lat=\"37.87\" lon=\"-122.26\">\n"
+            + "    <tag k=\"name\" v=\"Chevron\"/>\n"
+            + "  </node>\n"
+            + "  <node id=\"5\" lat=\"37.86\" lon=\"-122.25\">\n"
+            + "    <tag k=\"name\" v=\"Peet's\"/>\n"
+            + "  </node>\n"
+            + "  <node id=\"7\" lat=\"37.865\" lon=\"-122.255\">\n"
+            + "    <tag k=\"name\" v=\"CHEVRON!\"/>\n"
+            + "  </node>\n"
+            + "</osm>\n";
+
+    @Test
+    public void testLocationsNamedKeepsFileOrder() throws Exception {
+        File osm = TestGraphSnapshot.writeTempFile(".osm", OSM);
+        GraphDB g = new GraphDB(osm.getPath());
+
+        int[] chevrons = g.locationsNamed("chevron");
+        assertEquals(2, chevrons.length);
+        assertEquals(9, g.locationId(chevrons[0]));
+        assertEquals("Chevron", g.locationName(chevrons[0]));
+        assertEquals(7, g.locationId(chevrons[1]));
+        assertEquals(-122.255, g.locationLon(chevrons[1]), 0);
+
+        int[] peets = g.locationsNamed(GraphDB.cleanString("peets"));
+        assertEquals(1, peets.length);
+        assertEquals(37.86, g.locationLat(peets[0]), 0);
+
+        assertEquals(0, g.locationsNamed("shell").length);
+    }
+}
@@ -0,0 +1,86 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests eviction order, weight accounting and counters of LruCache.
+ */
+public class TestLruCache {
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        LruCache<String, String> cache = new LruCache<>(10, 1, String::length);
+        cache.put("a", "aaaa");
+        cache.put("b", "bbbb");
+        assertEquals("aaaa", cache.get("a"));
+        cache.put("c", "cccc");
+
+        assertTrue(cache.contains("a"));
+        assertFalse(cache.contains("b"));
+        assertTrue(cache.contains("c"));
+        assertEquals(8, cache.weight());
+        assertEquals(1, cache.evictions());
+    }
+
+    @Test
+    public void testLoaderAndCounters() {
+        LruCache<Integer, String> cache = new LruCache<>(1000, 4, String::length);
+        List<Integer> loaded = new ArrayList<>();
+        for (int round = 0; round < 3; round += 1) {
+            for (int i = 0; i < 10; i += 1) {
+                assertEquals("v" + i, cache.get(i, k -> {
+                    loaded.add(k);
+                    return "v" + k;
+                }));
+            }
+        }
+        assertEquals(10, loaded.size());
+        assertEquals(10, cache.misses());
+        assertEquals(20, cache.hits());
+        assertEquals(10, cache.size());
+    }
+
+    @Test
+    public void testBudgetIsSharedBySegments() {
+        LruCache<Integer, String> cache = new LruCache<>(12, 8, String::length);
+        /* Heavier than a segment's share of the budget, but within the budget. */
+        cache.put(0, "0123456789");
+        assertTrue(cache.contains(0));
+        assertEquals(10, cache.weight());
+
+        /* Keys spread over the segments; the least recently used goes first, wherever it is. */
+        LruCache<Integer, String> small = new LruCache<>(3, 8, String::length);
+        small.put(1, "a");
+        small.put(2, "b");
+        small.put(3, "c");
+        assertEquals("a", small.get(1));
+        small.put(4, "d");
+        assertFalse(small.contains(2));
+        assertTrue(small.contains(1));
+        assertTrue(small.contains(3));
+        assertTrue(small.contains(4));
+        assertEquals(3, small.weight());
+        assertEquals(1, small.evictions());
+
+        /* A value as heavy as the whole budget evicts everything else. */
+        small.put(5, "eee");
+        assertEquals(1, small.size());
+        assertTrue(small.contains(5));
+        assertEquals(3, small.weight());
+    }
+
+    @Test
+    public void testNullAndOversizedValuesAreNotCached() {
+        LruCache<String, String> cache = new LruCache<>(4, 1, String::length);
+        assertNull(cache.get("missing", k -> null));
+        assertFalse(cache.contains("missing"));
+        cache.put("big", "too long");
+        assertFalse(cache.contains("big"));
+        cache.put("ok", "fits");
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.weight());
+    }
+}
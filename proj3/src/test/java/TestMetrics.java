@@ -0,0 +1,139 @@
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the histogram's precision and its counts under concurrent recording, the sliding
+ * request rate and the /metrics report.
+ */
+public class TestMetrics {
+    @Test
+    public void testSmallValuesAreExact() {
+        Histogram h = new Histogram();
+        for (int i = 1; i <= 100; i += 1) {
+            h.record(i);
+        }
+        assertEquals(100, h.count());
+        assertEquals(5050, h.sum());
+        assertEquals(50.5, h.mean(), 1e-9);
+        assertEquals(50, h.percentile(0.5));
+        assertEquals(99, h.percentile(0.99));
+        assertEquals(100, h.percentile(1));
+        assertEquals(100, h.max());
+        assertEquals(0, new Histogram().percentile(0.5));
+    }
+
+    @Test
+    public void testPercentilesWithinPrecision() {
+        Histogram h = new Histogram();
+        Random random = new Random(42);
+        long[] values = new long[100000];
+        for (int i = 0; i < values.length; i += 1) {
+            values[i] = (long) Math.exp(random.nextDouble() * 30);
+            h.record(values[i]);
+        }
+        Arrays.sort(values);
+        for (double q : new double[] {0.5, 0.9, 0.99, 0.999}) {
+            long exact = values[(int) Math.ceil(q * values.length) - 1];
+            long estimate = h.percentile(q);
+            assertTrue(q + ": " + estimate + " < " + exact, estimate >= exact);
+            assertTrue(q + ": " + estimate + " vs " + exact, estimate <= exact + exact / 64 + 1);
+        }
+        assertEquals(values[values.length - 1], h.max());
+        h.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, h.percentile(1));
+    }
+
+    @Test
+    public void testConcurrentRecording() throws Exception {
+        Histogram h = new Histogram();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t += 1) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 100000; i += 1) {
+                    h.record(i % 1000);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(800000, h.count());
+        assertEquals(8L * 100 * 999 * 1000 / 2, h.sum());
+        assertEquals(999, h.max());
+        long median = h.percentile(0.5);
+        assertTrue(median >= 499 && median <= 507);
+    }
+
+    @Test
+    public void testRate() {
+        Metrics.Rate rate = new Metrics.Rate();
+        for (long second = 1000; second < 1030; second += 1) {
+            for (int i = 0; i < 6; i += 1) {
+                rate.tick(second);
+            }
+        }
+        /* The second in progress is not counted. */
+        assertEquals(29 * 6 / 60.0, rate.perSecond(1029), 1e-9);
+        assertEquals(30 * 6 / 60.0, rate.perSecond(1030), 1e-9);
+        assertEquals(10 * 6 / 60.0, rate.perSecond(1080), 1e-9);
+        assertEquals(0, rate.perSecond(1200), 0);
+        /* A slot is reused once its second has left the window. */
+        rate.tick(1060);
+        assertEquals(1 / 60.0, rate.perSecond(1100), 1e-9);
+
+        /* System.nanoTime() may be negative. */
+        Metrics.Rate negative = new Metrics.Rate();
+        for (long second = -5; second < 5; second += 1) {
+            negative.tick(second);
+        }
+        assertEquals(10 / 60.0, negative.perSecond(5), 1e-9);
+    }
+
+    @Test
+    public void testReport() {
+        Metrics metrics = new Metrics();
+        Metrics.Endpoint raster = metrics.endpoint("raster");
+        assertSame(raster, metrics.endpoint("raster"));
+        raster.record(2_000_000, 1000);
+        raster.record(4_000_000, 3000);
+        raster.recordError(1_000_000);
+        metrics.recordSettled(1234);
+        LruCache<String, String> cache = new LruCache<>(100, 1, String::length);
+        cache.put("a", "x");
+        cache.get("a");
+        cache.get("b");
+        metrics.watch("raster", cache);
+
+        JsonObject report = new JsonParser().parse(metrics.toJson()).getAsJsonObject();
+        JsonObject json = report.getAsJsonObject("endpoints").getAsJsonObject("raster");
+        assertEquals(3, json.get("count").getAsLong());
+        assertEquals(1, json.get("errors").getAsLong());
+        JsonObject latency = json.getAsJsonObject("latency_ms");
+        assertEquals(4.0, latency.get("max").getAsDouble(), 0.1);
+        assertEquals(2.0, latency.get("p50").getAsDouble(), 0.1);
+        JsonObject bytes = json.getAsJsonObject("bytes");
+        assertEquals(2, bytes.get("count").getAsLong());
+        assertEquals(2000, bytes.get("mean").getAsDouble(), 0);
+        JsonObject caches = report.getAsJsonObject("caches");
+        assertEquals(0.5, caches.getAsJsonObject("raster").get("hit_ratio").getAsDouble(), 0);
+        JsonObject routes = report.getAsJsonObject("routes");
+        assertEquals(1234, routes.getAsJsonObject("settled_vertices").get("max").getAsDouble(),
+                0);
+    }
+
+    @Test
+    public void testLoopback() {
+        assertTrue(MapServer.isLoopback("127.0.0.1"));
+        assertTrue(MapServer.isLoopback("0:0:0:0:0:0:0:1"));
+        assertFalse(MapServer.isLoopback("10.1.2.3"));
+        assertFalse(MapServer.isLoopback(null));
+    }
+}
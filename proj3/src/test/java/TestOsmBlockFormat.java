@@ -0,0 +1,35 @@
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a graph read from OsmBlockFormat matches the one parsed from the XML.
+ */
+public class TestOsmBlockFormat {
+    private static File convert(String xml) throws Exception {
+        File osm = TestGraphSnapshot.writeTempFile(".osm", xml);
+        File blocks = new File(osm.getPath() + OsmBlockFormat.EXTENSION);
+        blocks.deleteOnExit();
+        OsmBlockFormat.write(OsmReader.parse(osm), blocks);
+        return blocks;
+    }
+
+    @Test
+    public void testTinyMapIsExact() throws Exception {
+        File blocks = convert(TestGraphSnapshot.TINY_OSM);
+        GraphDB expected = new GraphDB(blocks.getPath().replace(OsmBlockFormat.EXTENSION, ""));
+        TestOsmReader.assertSameGraph(expected, new GraphDB(blocks.getPath()));
+    }
+
+    @Test
+    public void testGridIsSmallerAndWithinPrecision() throws Exception {
+        String xml = TestContractionHierarchy.gridOsm(new Random(16));
+        File blocks = convert(xml);
+        GraphDB expected = new GraphDB(blocks.getPath().replace(OsmBlockFormat.EXTENSION, ""));
+        TestOsmReader.assertSameGraph(expected, new GraphDB(blocks.getPath()), 0.5e-7);
+        assertTrue(blocks.length() * 5 < xml.length());
+    }
+}
@@ -0,0 +1,148 @@
+import org.junit.Test;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that OsmReader builds exactly the graph that SAX and GraphBuildingHandler build.
+ */
+public class TestOsmReader {
+    /** Exercises the XML the reader must get through: comments, entities, odd spacing. */
+    private static final String AWKWARD_OSM = "<?xml version='1.0' encoding='UTF-8'?>\n"
+            + "<!-- a comment with <node id=\"99\" lat=\"1\" lon=\"1\"/> inside -->\n"
+            + "<osm version=\"0.6\" generator=\"test\">\n"
+            + "  <bounds minlat=\"37.8\" minlon=\"-122.3\" maxlat=\"37.9\" maxlon=\"-122.2\"/>\n"
+            + "  <node lon='-122.2512345678901234' id='1' lat='37.86'/>\n"
+            + "  <node id=\"2\"\n      lat=\"3.786e1\" lon=\"-122.255\" visible=\"true\">\n"
+            + "    <tag k=\"amenity\" v=\"cafe\"/>\n"
+            + "    <tag k=\"name\" v=\"Caf&#233; &quot;Strada&quot; &amp; &#x1F600;\"/>\n"
+            + "  </node>\n"
+            + "  <node id=\"3\" lat=\"37.87\" lon=\"-122.26\" ></node>\n"
+            + "  <node id=\"4\" lat=\"-0.0\" lon=\"+122.27\"/>\n"
+            + "  <way id=\"10\">\n"
+            + "    <nd ref=\"1\"/><nd ref=\"2\"/><nd ref=\"3\"/>\n"
+            + "    <tag k=\"name\" v=\"Bancroft Way\"/>\n"
+            + "    <tag v=\"residential\" k=\"highway\"/>\n"
+            + "  </way>\n"
+            + "  <way id=\"11\">\n"
+            + "    <nd ref=\"3\"/>\n    <nd ref=\"4\"/>\n    <nd ref=\"5\"/>\n"
+            + "    <tag k=\"highway\" v=\"primary\"/>\n"
+            + "  </way>\n"
+            + "  <way id=\"12\">\n"
+            + "    <nd ref=\"1\"/>\n    <nd ref=\"4\"/>\n"
+            + "    <tag k=\"highway\" v=\"footway\"/>\n"
+            + "  </way>\n"
+            + "  <relation id=\"20\"><member type=\"way\" ref=\"10\" role=\"\"/></relation>\n"
+            + "</osm>\n";
+
+    /** Asserts that two graphs have the same vertices, edges, streets and locations. */
+    static void assertSameGraph(GraphDB expected, GraphDB actual) {
+        assertSameGraph(expected, actual, 0);
+    }
+
+    /** Same as above, allowing coordinates to differ by up to delta. */
+    static void assertSameGraph(GraphDB expected, GraphDB actual, double delta) {
+        assertEquals(expected.size(), actual.size());
+        for (int v = 0; v < expected.size(); v += 1) {
+            assertEquals(expected.id(v), actual.id(v));
+            assertEquals(expected.lonAt(v), actual.lonAt(v), delta);
+            assertEquals(expected.latAt(v), actual.latAt(v), delta);
+            assertEquals(expected.edgeStart(v), actual.edgeStart(v));
+            assertEquals(expected.edgeEnd(v), actual.edgeEnd(v));
+            for (int e = expected.edgeStart(v); e < expected.edgeEnd(v); e += 1) {
+                assertEquals(expected.edgeTarget(e), actual.edgeTarget(e));
+                assertEquals(expected.edgeStreet(e), actual.edgeStreet(e));
+            }
+        }
+        assertEquals(expected.streetCount(), actual.streetCount());
+        for (int s = 0; s < expected.streetCount(); s += 1) {
+            assertEquals(expected.streetName(s), actual.streetName(s));
+            assertEquals(expected.streetSpeed(s), actual.streetSpeed(s), 0);
+        }
+        assertEquals(expected.locationCount(), actual.locationCount());
+        for (int i = 0; i < expected.locationCount(); i += 1) {
+            assertEquals(expected.locationId(i), actual.locationId(i));
+            assertEquals(expected.locationLon(i), actual.locationLon(i), delta);
+            assertEquals(expected.locationLat(i), actual.locationLat(i), delta);
+            assertEquals(expected.locationName(i), actual.locationName(i));
+        }
+    }
+
+    private static void checkMatchesSax(String xml) throws Exception {
+        File osm = TestGraphSnapshot.writeTempFile(".osm", xml);
+        assertSameGraph(new GraphDB(osm.getPath(), GraphDB.OsmParser.SAX),
+                new GraphDB(osm.getPath(), GraphDB.OsmParser.STREAM));
+        assertSameGraph(new GraphDB(osm.getPath(), GraphDB.OsmParser.SAX),
+                new GraphDB(osm.getPath(), GraphDB.OsmParser.PARALLEL));
+    }
+
+    @Test
+    public void testTinyMap() throws Exception {
+        checkMatchesSax(TestGraphSnapshot.TINY_OSM);
+    }
+
+    @Test
+    public void testAwkwardXml() throws Exception {
+        checkMatchesSax(AWKWARD_OSM);
+        GraphDB g = new GraphDB(TestGraphSnapshot.writeTempFile(".osm", AWKWARD_OSM).getPath(),
+                GraphDB.OsmParser.STREAM);
+        assertEquals(4, g.size());
+        assertEquals("Caf\u00e9 \"Strada\" & \ud83d\ude00", g.locationName(0));
+    }
+
+    @Test
+    public void testGrid() throws Exception {
+        checkMatchesSax(TestContractionHierarchy.gridOsm(new Random(13)));
+    }
+
+    @Test
+    public void testCompressedInput() throws Exception {
+        String xml = TestContractionHierarchy.gridOsm(new Random(15));
+        File osm = TestGraphSnapshot.writeTempFile(".osm", xml);
+        File gz = File.createTempFile("bearmaps", ".osm.gz");
+        gz.deleteOnExit();
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(gz))) {
+            out.write(xml.getBytes(StandardCharsets.UTF_8));
+        }
+        File bz2 = File.createTempFile("bearmaps", ".osm.bz2");
+        bz2.deleteOnExit();
+        try (OutputStream out = new BZip2CompressorOutputStream(new FileOutputStream(bz2))) {
+            out.write(xml.getBytes(StandardCharsets.UTF_8));
+        }
+        GraphDB expected = new GraphDB(osm.getPath(), GraphDB.OsmParser.SAX);
+        for (File f : new File[] {gz, bz2}) {
+            for (GraphDB.OsmParser parser : GraphDB.OsmParser.values()) {
+                assertSameGraph(expected, new GraphDB(f.getPath(), parser));
+            }
+        }
+    }
+
+    @Test
+    public void testSmallChunks() throws Exception {
+        for (String xml : new String[] {AWKWARD_OSM,
+            TestContractionHierarchy.gridOsm(new Random(14))}) {
+            File osm = TestGraphSnapshot.writeTempFile(".osm", xml);
+            for (long chunkSize : new long[] {37, 256, 4096}) {
+                assertSameGraph(new GraphDB(osm.getPath(), GraphDB.OsmParser.SAX),
+                        new GraphDB(ParallelOsmReader.read(osm, chunkSize)));
+            }
+        }
+    }
+
+    @Test
+    public void testParserOf() {
+        assertEquals(GraphDB.OsmParser.PARALLEL, GraphDB.parserOf(null));
+        assertEquals(GraphDB.OsmParser.SAX, GraphDB.parserOf("sax"));
+        assertEquals(GraphDB.OsmParser.STREAM, GraphDB.parserOf(" Stream "));
+        /* A typo falls back to the default rather than breaking GraphDB's initialization. */
+        assertEquals(GraphDB.OsmParser.PARALLEL, GraphDB.parserOf("paralel"));
+    }
+}
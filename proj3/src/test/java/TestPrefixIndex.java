@@ -0,0 +1,75 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares PrefixIndex against a scan over all names.
+ */
+public class TestPrefixIndex {
+    private static final String[] WORDS = {"Cha", "Chez", "Chip", "Cafe", "Caf\u00e9", "Peet's",
+        "Pizza", "pizza!", "Berkeley", "Bowl", "Bow", "Safeway"};
+
+    private static String[] randomNames(Random random, int n) {
+        String[] names = new String[n];
+        for (int i = 0; i < n; i += 1) {
+            names[i] = WORDS[random.nextInt(WORDS.length)];
+            if (random.nextBoolean()) {
+                names[i] += " " + WORDS[random.nextInt(WORDS.length)];
+            }
+        }
+        return names;
+    }
+
+    @Test
+    public void testAllMatchesScan() {
+        String[] names = randomNames(new Random(11), 500);
+        PrefixIndex index = new PrefixIndex(names);
+        for (String prefix : new String[] {"", "c", "CH", "caf", "pizza ", "pe", "x", "Bow"}) {
+            HashSet<String> expected = new HashSet<>();
+            for (String name : names) {
+                if (GraphDB.cleanString(name).startsWith(GraphDB.cleanString(prefix))) {
+                    expected.add(name);
+                }
+            }
+            List<String> actual = index.all(prefix);
+            assertEquals(expected.size(), actual.size());
+            assertEquals(expected, new HashSet<>(actual));
+        }
+    }
+
+    @Test
+    public void testTopIsRankedByPopularityThenLength() {
+        String[] names = randomNames(new Random(12), 2000);
+        PrefixIndex index = new PrefixIndex(names);
+        Map<String, Integer> counts = new HashMap<>();
+        for (String name : names) {
+            counts.merge(name, 1, Integer::sum);
+        }
+        for (String prefix : new String[] {"", "c", "b", "pi", "safeway c"}) {
+            List<String> expected = new ArrayList<>(new HashSet<>(index.all(prefix)));
+            expected.sort((a, b) -> counts.get(a).equals(counts.get(b))
+                    ? (a.length() != b.length() ? a.length() - b.length() : a.compareTo(b))
+                    : counts.get(b) - counts.get(a));
+            for (int k : new int[] {0, 1, 5, 1000}) {
+                assertEquals(expected.subList(0, Math.min(k, expected.size())),
+                        index.top(prefix, k));
+            }
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        PrefixIndex index = new PrefixIndex(new String[0]);
+        assertEquals(0, index.size());
+        assertEquals(Arrays.asList(), index.all("a"));
+        assertEquals(Arrays.asList(), index.top("a", 3));
+    }
+}
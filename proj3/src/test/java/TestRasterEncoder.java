@@ -0,0 +1,95 @@
+import org.junit.Test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that PNGs decode to the same pixels at any deflate level, that JPEGs decode to
+ * nearly the same pixels and shrink with quality, and that one encoder serves many threads.
+ */
+public class TestRasterEncoder {
+    private static BufferedImage image() {
+        BufferedImage img = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = img.createGraphics();
+        for (int i = 0; i < 16; i += 1) {
+            g.setColor(new Color(i * 16, 255 - i * 16, (i * 97) % 256));
+            g.fillRect(i * 16, 0, 16, 256);
+        }
+        g.setColor(Color.WHITE);
+        g.drawLine(0, 0, 255, 255);
+        g.dispose();
+        return img;
+    }
+
+    private static BufferedImage decode(byte[] bytes) throws Exception {
+        return ImageIO.read(new ByteArrayInputStream(bytes));
+    }
+
+    @Test
+    public void testPngIsLossless() throws Exception {
+        BufferedImage img = image();
+        for (int level : new int[] {-1, 0, 1, 9}) {
+            BufferedImage decoded = decode(new RasterEncoder(level, 0.8f)
+                    .encode(img, RasterEncoder.Format.PNG));
+            for (int y = 0; y < img.getHeight(); y += 7) {
+                for (int x = 0; x < img.getWidth(); x += 7) {
+                    assertEquals(img.getRGB(x, y), decoded.getRGB(x, y));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testJpegQuality() throws Exception {
+        BufferedImage img = image();
+        byte[] low = new RasterEncoder(1, 0.2f).encode(img, RasterEncoder.Format.JPEG);
+        byte[] high = new RasterEncoder(1, 0.95f).encode(img, RasterEncoder.Format.JPEG);
+        assertTrue(low.length < high.length);
+        BufferedImage decoded = decode(high);
+        int rgb = decoded.getRGB(40, 200);
+        int expected = img.getRGB(40, 200);
+        for (int shift = 0; shift < 24; shift += 8) {
+            assertEquals((expected >> shift) & 0xff, (rgb >> shift) & 0xff, 12);
+        }
+    }
+
+    @Test
+    public void testSharedAcrossThreads() throws Exception {
+        RasterEncoder encoder = new RasterEncoder(1, 0.8f);
+        BufferedImage img = image();
+        byte[] expected = encoder.encode(img, RasterEncoder.Format.PNG);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            Future<?>[] results = new Future<?>[16];
+            for (int i = 0; i < results.length; i += 1) {
+                RasterEncoder.Format format = RasterEncoder.Format.values()[i % 2];
+                results[i] = pool.submit(() -> encoder.encode(img, format));
+            }
+            for (int i = 0; i < results.length; i += 2) {
+                assertArrayEquals(expected, (byte[]) results[i].get());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFormats() {
+        assertEquals(RasterEncoder.Format.JPEG, RasterEncoder.Format.of("JPEG"));
+        assertEquals("image/png", RasterEncoder.Format.of("png").mimeType());
+        assertNull(RasterEncoder.Format.of("gif"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadLevel() {
+        new RasterEncoder(10, 0.8f);
+    }
+}
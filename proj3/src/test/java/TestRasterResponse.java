@@ -0,0 +1,81 @@
+import org.junit.Test;
+
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the Base64 image spliced into a /raster response leaves it valid JSON with the
+ * rest of the metadata intact, that finished rasters fit in the raster cache, and the ETags that
+ * conditional requests are answered by.
+ */
+public class TestRasterResponse {
+    @Test
+    public void testWithImage() {
+        byte[] png = new byte[1000];
+        for (int i = 0; i < png.length; i += 1) {
+            png[i] = (byte) (i * 31);
+        }
+        Map<String, Object> params = new LinkedHashMap<>();
+        params.put("render_grid", new String[][] {{"img/1.png", "img/2.png"}});
+        params.put("depth", 1);
+        params.put("query_success", true);
+        JsonObject json = new JsonParser().parse(
+                MapServer.withImage(new Gson().toJson(params), png)).getAsJsonObject();
+        assertEquals(1, json.get("depth").getAsInt());
+        assertTrue(json.get("query_success").getAsBoolean());
+        assertEquals("img/2.png", json.getAsJsonArray("render_grid").get(0).getAsJsonArray()
+                .get(1).getAsString());
+        assertArrayEquals(png, Base64.getDecoder().decode(
+                json.get("b64_encoded_image_data").getAsString()));
+
+        JsonObject alone = new JsonParser().parse(MapServer.withImage("{}", new byte[] {1}))
+                .getAsJsonObject();
+        assertEquals("AQ==", alone.get("b64_encoded_image_data").getAsString());
+    }
+
+    @Test
+    public void testRasterSizedImagesAreCached() {
+        /* Built as the server's raster cache is, but with a budget of only four large rasters. */
+        LruCache<String, byte[]> cache = MapServer.newRasterCache(8 << 20);
+        /* However many processors there are, the segments stay few. */
+        assertTrue(cache.segments() <= 4);
+        for (int i = 0; i < 5; i += 1) {
+            cache.put("raster/" + i, new byte[2 << 20]);
+        }
+        /* The budget holds the four most recent, whichever segments they landed in. */
+        assertFalse(cache.contains("raster/0"));
+        for (int i = 1; i < 5; i += 1) {
+            assertTrue(cache.contains("raster/" + i));
+        }
+        assertEquals(8 << 20, cache.weight());
+
+        /* A raster heavier than a segment's even share of the budget is still cached. */
+        byte[] huge = new byte[6 << 20];
+        assertTrue(huge.length > cache.maxWeight() / cache.segments());
+        cache.put("raster/huge", huge);
+        assertSame(huge, cache.get("raster/huge"));
+    }
+
+    @Test
+    public void testEtags() {
+        String etag = MapServer.etag("raster/5/img/14241.png/img/23341.png/0/png");
+        assertTrue(etag.startsWith("\"") && etag.endsWith("\""));
+        assertEquals(etag, MapServer.etag("raster/5/img/14241.png/img/23341.png/0/png"));
+        assertNotEquals(etag, MapServer.etag("raster/5/img/14241.png/img/23341.png/1/png"));
+        assertNotEquals(MapServer.etag("search/false/null/ch"),
+                MapServer.etag("search/false/null/che"));
+
+        assertTrue(MapServer.ifNoneMatch(etag, etag));
+        assertTrue(MapServer.ifNoneMatch("\"other\", W/" + etag, etag));
+        assertTrue(MapServer.ifNoneMatch("*", etag));
+        assertFalse(MapServer.ifNoneMatch("\"other\"", etag));
+        assertFalse(MapServer.ifNoneMatch(null, etag));
+    }
+}
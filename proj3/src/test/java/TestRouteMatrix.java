@@ -0,0 +1,71 @@
+import org.junit.Test;
+
+import java.io.File;
+import java.util.LinkedList;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks Router.routeMatrix against single A* queries on a jittered grid of streets.
+ */
+public class TestRouteMatrix {
+    private static double[][] randomPoints(Random random, int n) {
+        double[][] points = new double[n][];
+        for (int i = 0; i < n; i += 1) {
+            points[i] = new double[] {-122.29 + random.nextDouble() * 0.04,
+                37.84 + random.nextDouble() * 0.04};
+        }
+        return points;
+    }
+
+    private static double length(GraphDB g, long[] path) {
+        double length = 0;
+        for (int k = 1; k < path.length; k += 1) {
+            boolean adjacent = false;
+            for (long w : g.adjacent(path[k - 1])) {
+                adjacent |= w == path[k];
+            }
+            assertTrue(adjacent);
+            length += g.distance(path[k - 1], path[k]);
+        }
+        return length;
+    }
+
+    @Test
+    public void testMatchesAStar() throws Exception {
+        Random random = new Random(17);
+        File osm = TestGraphSnapshot.writeTempFile(".osm", TestContractionHierarchy.gridOsm(random));
+        GraphDB g = new GraphDB(osm.getPath());
+        double[][] sources = randomPoints(random, 7);
+        double[][] targets = randomPoints(random, 9);
+        targets[3] = targets[5];
+
+        RouteMatrix matrix = Router.routeMatrix(g, sources, targets, true,
+                GraphDB.Metric.DISTANCE);
+        assertEquals(7, matrix.sources());
+        assertEquals(9, matrix.targets());
+        for (int i = 0; i < sources.length; i += 1) {
+            for (int j = 0; j < targets.length; j += 1) {
+                LinkedList<Long> expected = Router.shortestPathAStar(g, sources[i][0],
+                        sources[i][1], targets[j][0], targets[j][1]);
+                long[] path = matrix.path(i, j);
+                assertEquals((long) expected.getFirst(), path[0]);
+                assertEquals((long) expected.getLast(), path[path.length - 1]);
+                double expectedLength = 0;
+                Long prev = null;
+                for (Long v : expected) {
+                    expectedLength += prev == null ? 0 : g.distance(prev, v);
+                    prev = v;
+                }
+                assertEquals(expectedLength, matrix.length(i, j), 1e-12);
+                assertEquals(expectedLength, length(g, path), 1e-12);
+            }
+        }
+
+        RouteMatrix lengthsOnly = Router.routeMatrix(g, sources, targets, false,
+                GraphDB.Metric.DISTANCE);
+        assertFalse(lengthsOnly.hasPaths());
+        assertEquals(matrix.length(6, 8), lengthsOnly.length(6, 8), 0);
+    }
+}
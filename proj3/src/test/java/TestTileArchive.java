@@ -0,0 +1,101 @@
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import javax.imageio.ImageIO;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a packed tile archive serves the same bytes as the tile files it was built from,
+ * that tile file names map back to their tiles, and that other files are refused.
+ */
+public class TestTileArchive {
+    @Test
+    public void testTileOf() {
+        Rasterer rasterer = new Rasterer("img/");
+        for (int d = 0; d <= Rasterer.MAX_DEPTH; d += 1) {
+            int side = 1 << d;
+            for (int y = 0; y < side; y += 1) {
+                for (int x = 0; x < side; x += 1) {
+                    assertArrayEquals(new int[] {d, x, y},
+                            Rasterer.tileOf(rasterer.tileName(d, x, y)));
+                }
+            }
+        }
+        assertArrayEquals(new int[] {2, 1, 0}, Rasterer.tileOf("elsewhere/12.png"));
+        assertNull(Rasterer.tileOf("img/15.png"));
+        assertNull(Rasterer.tileOf("img/.png"));
+        assertNull(Rasterer.tileOf("img/11111111.png"));
+        assertNull(Rasterer.tileOf("img/1.jpg"));
+    }
+
+    @Test
+    public void testPackAndRead() throws Exception {
+        File dir = Files.createTempDirectory("bearmaps").toFile();
+        dir.deleteOnExit();
+        Rasterer rasterer = new Rasterer(dir.getPath() + "/");
+        int[][] tiles = {{0, 0, 0}, {1, 1, 0}, {2, 3, 3}, {3, 5, 2}};
+        byte[][] contents = new byte[tiles.length][];
+        for (int i = 0; i < tiles.length; i += 1) {
+            BufferedImage img = new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB);
+            img.setRGB(i, i, 0xff0000);
+            File f = new File(rasterer.tileName(tiles[i][0], tiles[i][1], tiles[i][2]));
+            f.deleteOnExit();
+            ImageIO.write(img, "png", f);
+            contents[i] = Files.readAllBytes(f.toPath());
+        }
+
+        File archive = File.createTempFile("bearmaps", ".bin");
+        archive.deleteOnExit();
+        assertEquals(tiles.length, TileArchive.pack(rasterer, 3, archive));
+        TileArchive packed = TileArchive.open(archive);
+        assertEquals(3, packed.maxDepth());
+        for (int i = 0; i < tiles.length; i += 1) {
+            ByteBuffer bytes = packed.tile(tiles[i][0], tiles[i][1], tiles[i][2]);
+            byte[] read = new byte[bytes.remaining()];
+            bytes.get(read);
+            assertArrayEquals(contents[i], read);
+            try (InputStream in = packed.open(tiles[i][0], tiles[i][1], tiles[i][2])) {
+                BufferedImage img = ImageIO.read(new MemoryCacheImageInputStream(in));
+                assertEquals(0xff0000, img.getRGB(i, i) & 0xffffff);
+            }
+        }
+        assertNull(packed.tile(1, 0, 0));
+        assertNull(packed.open(2, 0, 3));
+        assertNull(packed.tile(4, 0, 0));
+        assertNull(packed.tile(1, 2, 0));
+    }
+
+    @Test
+    public void testRejectsOversizedDepths() throws Exception {
+        /* Headers alone: an index this deep could not fit in a mapping, let alone this file. */
+        for (int depth : new int[] {-1, TileArchive.MAX_DEPTH + 1, 15, 16, 31}) {
+            File archive = File.createTempFile("bearmaps", ".bin");
+            archive.deleteOnExit();
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(archive))) {
+                out.writeInt(0x424d5441);
+                out.writeInt(1);
+                out.writeInt(depth);
+            }
+            try {
+                TileArchive.open(archive);
+                fail("Opened an archive of depth " + depth);
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("depth " + depth));
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsOtherFiles() throws Exception {
+        TileArchive.open(TestGraphSnapshot.writeTempFile(".bin", "not a tile archive"));
+    }
+}
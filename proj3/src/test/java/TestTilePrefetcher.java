@@ -0,0 +1,117 @@
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks which tiles are prefetched around a viewport, in what order, and that they end up in
+ * the cache without blocking the caller.
+ */
+public class TestTilePrefetcher {
+    private static final Rasterer RASTERER = new Rasterer("img/");
+
+    private static LruCache<String, BufferedImage> cache() {
+        return new LruCache<>(1 << 30, 1, img -> 1);
+    }
+
+    @Test
+    public void testAround() {
+        TilePrefetcher prefetcher = new TilePrefetcher(RASTERER, cache(), name -> null, 100, 1);
+        /* A 2 x 2 grid in the middle of depth 3: a ring of 12, 1 tile up and 16 down. */
+        List<String> names = prefetcher.around(3, 2, 2, 3, 3, 100);
+        assertEquals(12 + 1 + 16, names.size());
+        assertEquals(names.size(), new HashSet<>(names).size());
+        assertEquals(RASTERER.tileName(3, 1, 1), names.get(0));
+        assertEquals(RASTERER.tileName(3, 4, 4), names.get(11));
+        assertFalse(names.contains(RASTERER.tileName(3, 2, 2)));
+        assertEquals(RASTERER.tileName(2, 1, 1), names.get(12));
+        assertEquals(RASTERER.tileName(4, 4, 4), names.get(13));
+        assertEquals(RASTERER.tileName(4, 7, 7), names.get(28));
+
+        /* The budget keeps the nearest. */
+        assertEquals(names.subList(0, 5), prefetcher.around(3, 2, 2, 3, 3, 5));
+
+        /* At the corner of the map the ring is clipped; depth 1 has nothing above it. */
+        List<String> corner = prefetcher.around(1, 0, 0, 0, 0, 100);
+        assertEquals(Arrays.asList(RASTERER.tileName(1, 1, 0), RASTERER.tileName(1, 0, 1),
+                RASTERER.tileName(1, 1, 1), RASTERER.tileName(2, 0, 0),
+                RASTERER.tileName(2, 1, 0), RASTERER.tileName(2, 0, 1),
+                RASTERER.tileName(2, 1, 1)), corner);
+
+        /* Nothing below the deepest level. */
+        assertEquals(8 + 1, prefetcher.around(Rasterer.MAX_DEPTH, 5, 5, 5, 5, 100).size());
+    }
+
+    @Test
+    public void testWarmsCache() throws Exception {
+        LruCache<String, BufferedImage> cache = cache();
+        BufferedImage tile = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+        String cached = RASTERER.tileName(3, 1, 1);
+        cache.put(cached, tile);
+        Set<String> requested = Collections.synchronizedSet(new HashSet<>());
+        CountDownLatch release = new CountDownLatch(1);
+        TilePrefetcher prefetcher = new TilePrefetcher(RASTERER, cache, name -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            requested.add(name);
+            return tile;
+        }, 100, 2);
+
+        prefetcher.prefetch(3, 2, 2, 3, 3);
+        /* Loading is blocked, yet prefetch has returned. */
+        assertEquals(0, prefetcher.loaded());
+        release.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (prefetcher.loaded() < 28 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(28, prefetcher.loaded());
+        assertFalse(requested.contains(cached));
+        for (String name : prefetcher.around(3, 2, 2, 3, 3, 100)) {
+            assertTrue(cache.contains(name));
+        }
+        assertEquals(0, prefetcher.dropped());
+    }
+
+    @Test
+    public void testDropsOldest() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> requested = Collections.synchronizedList(new ArrayList<>());
+        TilePrefetcher prefetcher = new TilePrefetcher(RASTERER, cache(), name -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            requested.add(name);
+            return null;
+        }, 4, 1);
+        /* The first tile is taken by the one thread, which blocks; 3 are queued. */
+        prefetcher.prefetch(5, 10, 10, 10, 10);
+        /* 1 more fits; the other 3 each push out the oldest queued tile. */
+        prefetcher.prefetch(5, 20, 20, 20, 20);
+        assertEquals(4, prefetcher.queued());
+        assertEquals(3, prefetcher.dropped());
+
+        release.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (requested.size() < 5 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(5, requested.size());
+        assertEquals(prefetcher.around(5, 10, 10, 10, 10, 1).get(0), requested.get(0));
+        assertEquals(prefetcher.around(5, 20, 20, 20, 20, 4), requested.subList(1, 5));
+    }
+}